@@ -1,6 +1,9 @@
 package mcjty.hazardous;
 
+import mcjty.hazardous.data.AsyncHazardEvaluator;
+import mcjty.hazardous.data.CarriedEmissionIndex;
 import mcjty.hazardous.data.CustomRegistries;
+import mcjty.hazardous.data.ExposureCache;
 import mcjty.hazardous.data.HazardManager;
 import mcjty.hazardous.data.PlayerHazardData;
 import mcjty.hazardous.data.PlayerHazardDataDispatcher;
@@ -28,12 +31,13 @@ import net.minecraftforge.event.entity.player.PlayerEvent;
 import net.minecraftforge.event.RegisterCommandsEvent;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 
 public class EventHandlers {
 
-    private static final Map<HazardTickKey, Long> LAST_HAZARD_APPLICATION_TIMES = new HashMap<>();
+    private static final int MAX_CATCH_UP_STEPS = 10;
 
     public static void commandRegister(RegisterCommandsEvent event) {
         mcjty.hazardous.commands.ModCommands.register(event.getDispatcher());
@@ -65,66 +69,181 @@ public class EventHandlers {
 
     public static void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
         UUID playerId = event.getEntity().getUUID();
-        LAST_HAZARD_APPLICATION_TIMES.keySet().removeIf(key -> key.playerId().equals(playerId));
+        AsyncHazardEvaluator.forget(playerId);
+        CarriedEmissionIndex.forget(playerId);
+        ExposureCache.forget(playerId);
     }
 
     public static void onPlayerTickEvent(TickEvent.PlayerTickEvent event) {
         if (event.phase != TickEvent.Phase.START || event.player.level().isClientSide) {
             return;
         }
-        Level level = event.player.level();
-        long gameTime = level.getGameTime();
+        long gameTime = event.player.level().getGameTime();
         int workInterval = Math.max(1, Config.PLAYER_TICK_WORK_INTERVAL.get());
-        if (gameTime % workInterval != 0) {
+        // Every player keeps the same cadence but uses its own phase so not all players do their work in the same tick
+        long phase = Math.floorMod(event.player.getUUID().hashCode(), workInterval);
+        if ((gameTime + phase) % workInterval != 0) {
+            return;
+        }
+        if (HazardScheduler.isEnabled()) {
+            // The hazard work is handed out by HazardScheduler within the configured tick budget, but that only
+            // happens when a hazard type is due. Resistance pills keep the normal cadence
+            Player player = event.player;
+            PlayerHazardDataDispatcher.getPlayerHazardData(player).ifPresent(store -> syncResistancePills(player, store, gameTime));
             return;
         }
+        doHazardWork(event.player);
+    }
+
+    // Expire timed attribute effects (resistance pills) and keep the pill status on the client up to date
+    private static void syncResistancePills(Player player, PlayerHazardData store, long gameTime) {
+        boolean hadTrackedPills = !store.getResistancePillAttributeIds().isEmpty();
+        TimedAttributeEffects.syncPlayer(player, store, gameTime);
+        Map<ResourceLocation, PlayerHazardData.ResistancePillStatus> pillStatuses = store.getActiveResistancePillStatuses(gameTime);
+        if (hadTrackedPills || !pillStatuses.isEmpty()) {
+            Messages.sendToPlayer(new PacketResistancePillStatus(pillStatuses), player);
+        }
+    }
+
+    /**
+     * How urgently this player needs hazard work, 0 if nothing is due. Grows with how late the player is
+     * relative to the apply interval of its hazard types and with how high and how fast changing the last exposure was.
+     */
+    public static double getWorkPriority(Player player) {
+        UUID playerId = player.getUUID();
+        if (AsyncHazardEvaluator.hasResult(playerId)) {
+            // Applying a finished result is cheap and should not wait
+            return Double.MAX_VALUE;
+        }
+        if (AsyncHazardEvaluator.isBusy(playerId)) {
+            return 0.0;
+        }
+        PlayerHazardData store = PlayerHazardDataDispatcher.getPlayerHazardData(player).resolve().orElse(null);
+        if (store == null) {
+            return 0.0;
+        }
+        Level level = player.level();
+        long gameTime = level.getGameTime();
+        Registry<HazardType> types = Tools.getRegistryAccess(level).registryOrThrow(CustomRegistries.HAZARD_TYPE_REGISTRY_KEY);
+        double priority = 0.0;
+        for (HazardType type : types) {
+            ResourceLocation typeId = types.getKey(type);
+            if (typeId == null || !Config.isHazardTypeEnabled(typeId)) {
+                continue;
+            }
+            int intervalTicks = Math.max(1, type.exposure().applyIntervalTicks());
+            int typeIndex = types.getId(type);
+            long lastApplicationTime = store.getLastApplicationTime(types, typeIndex);
+            double lateness = lastApplicationTime == Long.MIN_VALUE ? 1.0 : (double) (gameTime - lastApplicationTime) / intervalTicks;
+            if (lateness < 1.0) {
+                continue;
+            }
+            double exposure = store.getLastExposure(types, typeIndex);
+            double weight = Double.isNaN(exposure) ? 1.0
+                    : 1.0 + Math.log1p(Math.max(0.0, exposure)) + Math.log1p(Math.abs(store.getLastExposureChange(types, typeIndex)));
+            priority = Math.max(priority, lateness * weight);
+        }
+        return priority;
+    }
+
+    /**
+     * Game time at which the first hazard type of this player becomes due. The current game time if one is due
+     * already or an asynchronous evaluation is pending, Long.MAX_VALUE if no enabled type can become due.
+     */
+    public static long getNextWorkTime(Player player) {
+        Level level = player.level();
+        long gameTime = level.getGameTime();
+        UUID playerId = player.getUUID();
+        if (AsyncHazardEvaluator.hasResult(playerId) || AsyncHazardEvaluator.isBusy(playerId)) {
+            return gameTime;
+        }
+        PlayerHazardData store = PlayerHazardDataDispatcher.getPlayerHazardData(player).resolve().orElse(null);
+        if (store == null) {
+            return Long.MAX_VALUE;
+        }
+        Registry<HazardType> types = Tools.getRegistryAccess(level).registryOrThrow(CustomRegistries.HAZARD_TYPE_REGISTRY_KEY);
+        long next = Long.MAX_VALUE;
+        for (HazardType type : types) {
+            ResourceLocation typeId = types.getKey(type);
+            if (typeId == null || !Config.isHazardTypeEnabled(typeId)) {
+                continue;
+            }
+            long lastApplicationTime = store.getLastApplicationTime(types, types.getId(type));
+            if (lastApplicationTime == Long.MIN_VALUE) {
+                return gameTime;
+            }
+            next = Math.min(next, lastApplicationTime + Math.max(1, type.exposure().applyIntervalTicks()));
+        }
+        return next;
+    }
 
+    /**
+     * Evaluate and apply all hazard types that are due for this player.
+     */
+    public static void doHazardWork(Player player) {
+        Level level = player.level();
+        long gameTime = level.getGameTime();
         Registry<HazardType> types = Tools.getRegistryAccess(level).registryOrThrow(CustomRegistries.HAZARD_TYPE_REGISTRY_KEY);
         Registry<EffectEntry> effectEntries = Tools.getRegistryAccess(level).registryOrThrow(CustomRegistries.EFFECT_ENTRY_REGISTRY_KEY);
+        // With the budgeted scheduler a player can be late. The missed applications are then done in one go
+        boolean catchUp = HazardScheduler.isEnabled();
+        // With the budgeted scheduler resistance pills are synced from the player tick (see onPlayerTickEvent)
+        boolean syncPills = !HazardScheduler.isEnabled();
 
-        PlayerHazardDataDispatcher.getPlayerHazardData(event.player).ifPresent(store -> {
-            boolean hadTrackedPills = !store.getResistancePillAttributeIds().isEmpty();
-            TimedAttributeEffects.syncPlayer(event.player, store, gameTime);
-            Map<ResourceLocation, PlayerHazardData.ResistancePillStatus> pillStatuses = store.getActiveResistancePillStatuses(gameTime);
+        PlayerHazardDataDispatcher.getPlayerHazardData(player).ifPresent(store -> {
+            boolean hadTrackedPills = syncPills && !store.getResistancePillAttributeIds().isEmpty();
+            if (syncPills) {
+                TimedAttributeEffects.syncPlayer(player, store, gameTime);
+            }
+            Map<ResourceLocation, PlayerHazardData.ResistancePillStatus> pillStatuses = syncPills ? store.getActiveResistancePillStatuses(gameTime) : Map.of();
             boolean clientNeedsUpdate = false;
             Map<ResourceLocation, Double> effectiveExposureForClient = new HashMap<>();
-            for (HazardType type : types) {
-                ResourceLocation typeId = types.getKey(type);
-                if (typeId == null || !Config.isHazardTypeEnabled(typeId)) {
-                    continue;
-                }
-                int intervalTicks = Math.max(1, type.exposure().applyIntervalTicks());
-                HazardTickKey tickKey = new HazardTickKey(event.player.getUUID(), typeId);
-                Long lastApplicationTime = LAST_HAZARD_APPLICATION_TIMES.get(tickKey);
-                if (lastApplicationTime != null) {
-                    long elapsed = gameTime - lastApplicationTime;
-                    if (elapsed < intervalTicks) {
-                        // Skip dose and effect handling this tick for this hazard type
-                        continue;
-                    }
-                }
-                LAST_HAZARD_APPLICATION_TIMES.put(tickKey, gameTime);
+            UUID playerId = player.getUUID();
 
+            // Results of an asynchronous evaluation started on an earlier work tick are applied first
+            AsyncHazardEvaluator.Result result = AsyncHazardEvaluator.poll(playerId);
+            if (result != null) {
                 clientNeedsUpdate = true;
+                HazardManager.recordValues(level, result.values());
+                applyHazardValues(player, store, types, result.types(), result.steps(), result.values(), effectEntries, effectiveExposureForClient);
+            }
 
-                double input = HazardManager.getHazardValue(type, level, event.player);
-                input = GasmaskItem.applyProtectionAndDamage(event.player, typeId, input);
-                input = HazardAttributes.applyResistance(event.player, typeId, type, input);
-                effectiveExposureForClient.put(typeId, input);
-                double current = store.getDose(typeId);
-                double value = type.exposure().calculate(input, current);
-                store.setDose(typeId, value);
-
-                for (ResourceLocation effectId : type.effects()) {
-                    EffectEntry effect = effectEntries.get(effectId);
-                    if (effect == null) {
+            Map<ResourceLocation, HazardType> dueTypes = new LinkedHashMap<>();
+            Map<ResourceLocation, Integer> steps = new HashMap<>();
+            if (!AsyncHazardEvaluator.isBusy(playerId)) {
+                for (HazardType type : types) {
+                    ResourceLocation typeId = types.getKey(type);
+                    if (typeId == null || !Config.isHazardTypeEnabled(typeId)) {
                         continue;
                     }
-                    // Evaluate trigger with the current dose value and apply action if it fires
-                    if (effect.trigger().shouldTrigger(value, event.player.getRandom())) {
-                        double factor = effect.trigger().factor(value);
-                        effect.action().apply(event.player, value, factor);
+                    int intervalTicks = Math.max(1, type.exposure().applyIntervalTicks());
+                    int typeIndex = types.getId(type);
+                    long lastApplicationTime = store.getLastApplicationTime(types, typeIndex);
+                    if (lastApplicationTime != Long.MIN_VALUE) {
+                        long elapsed = gameTime - lastApplicationTime;
+                        if (elapsed < intervalTicks) {
+                            // Skip dose and effect handling this tick for this hazard type
+                            continue;
+                        }
+                        if (catchUp) {
+                            steps.put(typeId, (int) Math.min(MAX_CATCH_UP_STEPS, elapsed / intervalTicks));
+                        }
                     }
+                    store.setLastApplicationTime(types, typeIndex, gameTime);
+                    dueTypes.put(typeId, type);
+                }
+            }
+
+            if (!dueTypes.isEmpty()) {
+                if (Config.ASYNC_EVALUATION.get()) {
+                    // Blocking is traced on a worker thread, the dose is applied when the result is polled
+                    AsyncHazardEvaluator.submit(playerId, dueTypes, steps, HazardManager.prepareHazardValues(level, player, dueTypes));
+                } else {
+                    clientNeedsUpdate = true;
+
+                    // Evaluate all due hazard types in one pass so shared world queries are only done once
+                    Map<ResourceLocation, Double> inputs = HazardManager.getHazardValues(level, player, dueTypes);
+                    applyHazardValues(player, store, types, dueTypes, steps, inputs, effectEntries, effectiveExposureForClient);
                 }
             }
             if (clientNeedsUpdate) {
@@ -138,15 +257,44 @@ public class EventHandlers {
                     forClient.put(typeId, effectiveExposureForClient.getOrDefault(typeId, HazardManager.getLastCachedValue(typeId, level)));
                     doseForClient.put(typeId, store.getDose(typeId));
                 }
-                Messages.sendToPlayer(new PacketRadiationAtPos(forClient),  event.player);
-                Messages.sendToPlayer(new PacketPlayerDose(doseForClient), event.player);
+                Messages.sendToPlayer(new PacketRadiationAtPos(forClient),  player);
+                Messages.sendToPlayer(new PacketPlayerDose(doseForClient), player);
             }
-            if (clientNeedsUpdate || hadTrackedPills || !pillStatuses.isEmpty()) {
-                Messages.sendToPlayer(new PacketResistancePillStatus(pillStatuses), event.player);
+            if (syncPills && (clientNeedsUpdate || hadTrackedPills || !pillStatuses.isEmpty())) {
+                Messages.sendToPlayer(new PacketResistancePillStatus(pillStatuses), player);
             }
         });
     }
 
-    private record HazardTickKey(UUID playerId, ResourceLocation typeId) {
+    private static void applyHazardValues(Player player, PlayerHazardData store, Registry<HazardType> registry,
+                                          Map<ResourceLocation, HazardType> types, Map<ResourceLocation, Integer> steps, Map<ResourceLocation, Double> inputs,
+                                          Registry<EffectEntry> effectEntries, Map<ResourceLocation, Double> effectiveExposureForClient) {
+        for (Map.Entry<ResourceLocation, HazardType> entry : types.entrySet()) {
+            ResourceLocation typeId = entry.getKey();
+            HazardType type = entry.getValue();
+            double input = inputs.getOrDefault(typeId, 0.0);
+            input = GasmaskItem.applyProtectionAndDamage(player, typeId, input);
+            input = HazardAttributes.applyResistance(player, typeId, type, input);
+            effectiveExposureForClient.put(typeId, input);
+            store.setLastExposure(registry, registry.getId(type), input);
+            double value = store.getDose(typeId);
+            int count = Math.max(1, steps.getOrDefault(typeId, 1));
+            for (int i = 0; i < count; i++) {
+                value = type.exposure().calculate(input, value);
+            }
+            store.setDose(typeId, value);
+
+            for (ResourceLocation effectId : type.effects()) {
+                EffectEntry effect = effectEntries.get(effectId);
+                if (effect == null) {
+                    continue;
+                }
+                // Evaluate trigger with the current dose value and apply action if it fires
+                if (effect.trigger().shouldTrigger(value, player.getRandom())) {
+                    double factor = effect.trigger().factor(value);
+                    effect.action().apply(player, value, factor);
+                }
+            }
+        }
     }
 }
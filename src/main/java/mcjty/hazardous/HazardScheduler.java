@@ -0,0 +1,112 @@
+package mcjty.hazardous;
+
+import mcjty.hazardous.setup.Config;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.players.PlayerList;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.server.ServerStoppingEvent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * Hands out player hazard work from the server tick while staying within a time budget (hazardTickBudgetMs).
+ * Players wait in a queue ordered by the game time at which their next hazard type is due, so only players that
+ * are due are looked at. Those are handled in order of EventHandlers.getWorkPriority(). Players that don't fit in
+ * the budget stay due and become more urgent every tick, and the dose they missed is applied when they get their turn.
+ */
+public class HazardScheduler {
+
+    // Players are looked at again at least this often, so changed hazard types and intervals are picked up
+    private static final int MAX_WAIT_TICKS = 20;
+
+    private record Due(long time, UUID playerId) {
+    }
+
+    private record Work(ServerPlayer player, double priority) {
+    }
+
+    // Next due time per player. Queue entries with another time than the one in DUE_TIMES are stale and skipped
+    private static final Map<UUID, Long> DUE_TIMES = new HashMap<>();
+    private static final PriorityQueue<Due> QUEUE = new PriorityQueue<>(Comparator.comparingLong(Due::time));
+
+    public static boolean isEnabled() {
+        return Config.HAZARD_TICK_BUDGET_MS.get() > 0.0;
+    }
+
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END || !isEnabled()) {
+            return;
+        }
+        PlayerList playerList = event.getServer().getPlayerList();
+        long gameTime = event.getServer().overworld().getGameTime();
+        if (DUE_TIMES.size() != playerList.getPlayerCount()) {
+            // Players that joined (or the scheduler was just enabled). Players that left are dropped when due
+            for (ServerPlayer player : playerList.getPlayers()) {
+                if (!DUE_TIMES.containsKey(player.getUUID())) {
+                    schedule(player.getUUID(), gameTime);
+                }
+            }
+        }
+
+        List<Work> work = new ArrayList<>();
+        while (!QUEUE.isEmpty() && QUEUE.peek().time() <= gameTime) {
+            Due due = QUEUE.poll();
+            Long time = DUE_TIMES.get(due.playerId());
+            if (time == null || time != due.time()) {
+                continue;
+            }
+            ServerPlayer player = playerList.getPlayer(due.playerId());
+            if (player == null) {
+                DUE_TIMES.remove(due.playerId());
+                continue;
+            }
+            double priority = EventHandlers.getWorkPriority(player);
+            if (priority > 0.0) {
+                work.add(new Work(player, priority));
+            } else {
+                reschedule(player, gameTime);
+            }
+        }
+        if (work.isEmpty()) {
+            return;
+        }
+        work.sort(Comparator.comparingDouble(Work::priority).reversed());
+
+        long budget = (long) (Config.HAZARD_TICK_BUDGET_MS.get() * 1_000_000L);
+        long start = System.nanoTime();
+        // At least one player is always handled so an overloaded server still makes progress
+        int i = 0;
+        do {
+            ServerPlayer player = work.get(i++).player();
+            if (!player.isRemoved()) {
+                EventHandlers.doHazardWork(player);
+            }
+            reschedule(player, gameTime);
+        } while (i < work.size() && System.nanoTime() - start < budget);
+        // The rest is still due and gets its turn next tick
+        for (; i < work.size(); i++) {
+            schedule(work.get(i).player().getUUID(), gameTime + 1);
+        }
+    }
+
+    public static void onServerStopping(ServerStoppingEvent event) {
+        DUE_TIMES.clear();
+        QUEUE.clear();
+    }
+
+    private static void reschedule(ServerPlayer player, long gameTime) {
+        long next = EventHandlers.getNextWorkTime(player);
+        schedule(player.getUUID(), Math.max(gameTime + 1, Math.min(next, gameTime + MAX_WAIT_TICKS)));
+    }
+
+    private static void schedule(UUID playerId, long time) {
+        DUE_TIMES.put(playerId, time);
+        QUEUE.add(new Due(time, playerId));
+    }
+}
@@ -5,7 +5,16 @@ import mcjty.hazardous.client.RadiationOverlayRenderer;
 import mcjty.hazardous.client.ClientFxManager;
 import mcjty.hazardous.client.ClientRegistration;
 import mcjty.hazardous.client.SoundController;
+import mcjty.hazardous.data.AsyncHazardEvaluator;
+import mcjty.hazardous.data.CarriedEmissionIndex;
+import mcjty.hazardous.data.ChunkChangeTracker;
 import mcjty.hazardous.data.CustomRegistries;
+import mcjty.hazardous.data.HazardBlockIndex;
+import mcjty.hazardous.data.HazardEntityIndex;
+import mcjty.hazardous.data.HazardField;
+import mcjty.hazardous.data.HazardIndexStorage;
+import mcjty.hazardous.data.HazardPropagation;
+import mcjty.hazardous.data.OcclusionCache;
 import mcjty.hazardous.datagen.DataGenerators;
 import mcjty.hazardous.setup.Config;
 import mcjty.hazardous.setup.ModSetup;
@@ -48,7 +57,33 @@ public class Hazardous {
         forgeBus.addListener(EventHandlers::onPlayerCloned);
         forgeBus.addListener(EventHandlers::onPlayerLoggedOut);
         forgeBus.addListener(EventHandlers::onPlayerTickEvent);
+        forgeBus.addListener(HazardScheduler::onServerTick);
+        forgeBus.addListener(HazardScheduler::onServerStopping);
         forgeBus.addListener(EventHandlers::commandRegister);
+        forgeBus.addListener(HazardBlockIndex::onChunkLoad);
+        forgeBus.addListener(HazardBlockIndex::onChunkUnload);
+        forgeBus.addListener(HazardBlockIndex::onLevelSave);
+        forgeBus.addListener(HazardBlockIndex::onLevelUnload);
+        forgeBus.addListener(HazardBlockIndex::onNeighborNotify);
+        forgeBus.addListener(HazardIndexStorage::onServerStopped);
+        forgeBus.addListener(HazardEntityIndex::onLevelUnload);
+        forgeBus.addListener(CarriedEmissionIndex::onLevelUnload);
+        forgeBus.addListener(HazardField::onChunkUnload);
+        forgeBus.addListener(HazardField::onLevelUnload);
+        forgeBus.addListener(HazardPropagation::onChunkLoad);
+        forgeBus.addListener(HazardPropagation::onChunkUnload);
+        forgeBus.addListener(HazardPropagation::onLevelUnload);
+        forgeBus.addListener(HazardPropagation::onNeighborNotify);
+        forgeBus.addListener(HazardPropagation::onServerTick);
+        forgeBus.addListener(HazardPropagation::onServerStopping);
+        forgeBus.addListener(ChunkChangeTracker::onChunkLoad);
+        forgeBus.addListener(ChunkChangeTracker::onChunkUnload);
+        forgeBus.addListener(ChunkChangeTracker::onLevelUnload);
+        forgeBus.addListener(ChunkChangeTracker::onNeighborNotify);
+        forgeBus.addListener(OcclusionCache::onChunkUnload);
+        forgeBus.addListener(OcclusionCache::onLevelUnload);
+        forgeBus.addListener(OcclusionCache::onNeighborNotify);
+        forgeBus.addListener(AsyncHazardEvaluator::onServerStopping);
 
         if (dist.isClient()) {
             bus.addListener(ClientRegistration::onClientSetup);
@@ -18,6 +18,9 @@ import net.minecraft.resources.ResourceLocation;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.level.Level;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class CommandRadiationHere implements Command<CommandSourceStack> {
 
     private static final CommandRadiationHere CMD = new CommandRadiationHere();
@@ -37,14 +40,16 @@ public class CommandRadiationHere implements Command<CommandSourceStack> {
 
         source.sendSuccess(() -> Component.literal("Hazard radiation at your position:"), false);
 
+        Map<ResourceLocation, HazardType> enabled = new LinkedHashMap<>();
         for (HazardType type : types) {
             ResourceLocation id = types.getKey(type);
             if (id == null || !Config.isHazardTypeEnabled(id)) {
                 continue;
             }
-            double value = HazardManager.getHazardValue(type, level, player);
-            source.sendSuccess(() -> Component.literal("- " + id + ": " + String.format("%.4f", value)), false);
+            enabled.put(id, type);
         }
+        HazardManager.getHazardValues(level, player, enabled).forEach((id, value) ->
+                source.sendSuccess(() -> Component.literal("- " + id + ": " + String.format("%.4f", value)), false));
         return 0;
     }
 }
@@ -0,0 +1,240 @@
+package mcjty.hazardous.data;
+
+import mcjty.hazardous.data.objects.HazardType;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.tags.TagKey;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Absorption values of an absorption blocking model for every block state, indexed by the id of the state in
+ * Block.BLOCK_STATE_REGISTRY. The table is filled once (when the hazard plan is compiled) and never changes after,
+ * so a model can be used from any thread. Cached occlusion of the world lives in OcclusionCache, keyed by model.
+ * Tags must be bound when a model is built.
+ */
+public final class AbsorptionModel {
+
+    /**
+     * Brick summary value for a brick of which the blocks don't all have the same absorption.
+     */
+    public static final float MIXED_BRICK = -1.0f;
+
+    // Summary of a section with nothing that absorbs, shared and never modified
+    private static final float[] CLEAR_BRICKS = new float[64];
+
+    private final float defaultAbsorption;
+    private final float[] absorptions;
+
+    private AbsorptionModel(float defaultAbsorption, float[] absorptions) {
+        this.defaultAbsorption = defaultAbsorption;
+        this.absorptions = absorptions;
+    }
+
+    public static AbsorptionModel build(HazardType.Blocking.Absorption absorption) {
+        double defaultAbsorption = clampAbsorption(absorption.defaultAbsorption());
+        Map<Block, Double> blockAbsorptions = new HashMap<>();
+        for (HazardType.Blocking.Absorption.BlockEntry entry : absorption.blocks()) {
+            if (!BuiltInRegistries.BLOCK.containsKey(entry.block())) {
+                continue;
+            }
+            blockAbsorptions.put(BuiltInRegistries.BLOCK.get(entry.block()), clampAbsorption(entry.absorption()));
+        }
+        List<TagRule> tagRules = new ArrayList<>();
+        for (HazardType.Blocking.Absorption.TagEntry entry : absorption.tags()) {
+            tagRules.add(new TagRule(TagKey.create(Registries.BLOCK, entry.tag()), clampAbsorption(entry.absorption())));
+        }
+
+        // Absorption only depends on the block (and air), so compute it once per block and copy it to all states
+        Map<Block, Float> perBlock = new HashMap<>();
+        float[] absorptions = new float[Block.BLOCK_STATE_REGISTRY.size()];
+        for (BlockState state : Block.BLOCK_STATE_REGISTRY) {
+            int id = Block.BLOCK_STATE_REGISTRY.getId(state);
+            if (id < 0 || id >= absorptions.length) {
+                continue;
+            }
+            if (state.isAir()) {
+                absorptions[id] = 0.0f;
+                continue;
+            }
+            absorptions[id] = perBlock.computeIfAbsent(state.getBlock(), block -> (float) computeAbsorption(state, blockAbsorptions, tagRules, defaultAbsorption));
+        }
+        return new AbsorptionModel((float) defaultAbsorption, absorptions);
+    }
+
+    private static double computeAbsorption(BlockState state, Map<Block, Double> blockAbsorptions, List<TagRule> tagRules, double defaultAbsorption) {
+        Double configured = blockAbsorptions.get(state.getBlock());
+        if (configured != null) {
+            return configured;
+        }
+        double value = defaultAbsorption;
+        for (TagRule rule : tagRules) {
+            if (state.is(rule.tag())) {
+                value = Math.max(value, rule.absorption());
+                if (value >= 1.0) {
+                    return 1.0;
+                }
+            }
+        }
+        return clampAbsorption(value);
+    }
+
+    private static double clampAbsorption(double value) {
+        return Mth.clamp(value, 0.0, 1.0);
+    }
+
+    public double getAbsorption(BlockState state) {
+        int id = Block.BLOCK_STATE_REGISTRY.getId(state);
+        if (id < 0 || id >= absorptions.length) {
+            return state.isAir() ? 0.0 : defaultAbsorption;
+        }
+        return absorptions[id];
+    }
+
+    /**
+     * Transmission of the line between two points, walked voxel by voxel on the given reader. The voxels containing
+     * the end points don't absorb. 4x4x4 bricks that the reader reports as uniform are crossed in one step, applying
+     * (1 - absorption)^n for the n voxels the line crosses in them. Only uses immutable state of the model
+     * so it is safe to call from worker threads.
+     */
+    public double walkLineFactor(BlockReader reader, double sx, double sy, double sz, double ex, double ey, double ez, double cutoffFactor) {
+        if (cutoffFactor >= 1.0) {
+            return 0.0;
+        }
+        int x = Mth.floor(sx);
+        int y = Mth.floor(sy);
+        int z = Mth.floor(sz);
+        int endX = Mth.floor(ex);
+        int endY = Mth.floor(ey);
+        int endZ = Mth.floor(ez);
+
+        if (x == endX && y == endY && z == endZ) {
+            return 1.0;
+        }
+
+        double dx = ex - sx;
+        double dy = ey - sy;
+        double dz = ez - sz;
+
+        int stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+        int stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+        int stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
+
+        double tDeltaX = stepX == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dx);
+        double tDeltaY = stepY == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dy);
+        double tDeltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dz);
+
+        double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY
+                : (stepX > 0 ? (x + 1.0 - sx) : (sx - x)) * tDeltaX;
+        double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY
+                : (stepY > 0 ? (y + 1.0 - sy) : (sy - y)) * tDeltaY;
+        double tMaxZ = stepZ == 0 ? Double.POSITIVE_INFINITY
+                : (stepZ > 0 ? (z + 1.0 - sz) : (sz - z)) * tDeltaZ;
+
+        double factor = 1.0;
+        int maxSteps = 1 + Math.abs(endX - x) + Math.abs(endY - y) + Math.abs(endZ - z);
+        for (int i = 0; i <= maxSteps; i++) {
+            if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
+                x += stepX;
+                tMaxX += tDeltaX;
+            } else if (tMaxY <= tMaxZ) {
+                y += stepY;
+                tMaxY += tDeltaY;
+            } else {
+                z += stepZ;
+                tMaxZ += tDeltaZ;
+            }
+            if (x == endX && y == endY && z == endZ) {
+                break;
+            }
+            // The brick of the end voxel is walked voxel by voxel so the end voxel is never skipped
+            boolean endBrick = (x >> 2) == (endX >> 2) && (y >> 2) == (endY >> 2) && (z >> 2) == (endZ >> 2);
+            float uniform = endBrick ? MIXED_BRICK : reader.getUniformBrickAbsorption(this, x, y, z);
+            double absorption;
+            int count = 1;
+            if (uniform >= 0.0f) {
+                // Jump to the last voxel of the brick on the line, counting the voxels crossed on the way
+                int remainingX = stepX > 0 ? 3 - (x & 3) : (stepX < 0 ? x & 3 : 0);
+                int remainingY = stepY > 0 ? 3 - (y & 3) : (stepY < 0 ? y & 3 : 0);
+                int remainingZ = stepZ > 0 ? 3 - (z & 3) : (stepZ < 0 ? z & 3 : 0);
+                double tExit = Math.min(tMaxX + remainingX * tDeltaX, Math.min(tMaxY + remainingY * tDeltaY, tMaxZ + remainingZ * tDeltaZ));
+                int nx = stepsBefore(tMaxX, tDeltaX, tExit, remainingX);
+                int ny = stepsBefore(tMaxY, tDeltaY, tExit, remainingY);
+                int nz = stepsBefore(tMaxZ, tDeltaZ, tExit, remainingZ);
+                x += stepX * nx;
+                y += stepY * ny;
+                z += stepZ * nz;
+                tMaxX += nx * tDeltaX;
+                tMaxY += ny * tDeltaY;
+                tMaxZ += nz * tDeltaZ;
+                count += nx + ny + nz;
+                absorption = uniform;
+            } else {
+                BlockState state = reader.getBlockState(x, y, z);
+                if (state == null) {
+                    return 0.0;
+                }
+                absorption = getAbsorption(state);
+            }
+            if (absorption > 0.0) {
+                factor *= count == 1 ? (1.0 - absorption) : Math.pow(1.0 - absorption, count);
+                if (factor <= cutoffFactor) {
+                    return 0.0;
+                }
+            }
+        }
+        return factor;
+    }
+
+    /**
+     * Per 4x4x4 brick of a section (index bx + bz * 4 + by * 16) the absorption shared by all blocks in the brick,
+     * or MIXED_BRICK if they differ. Null states are a section with only air.
+     */
+    public float[] summarizeBricks(@Nullable PalettedContainer<BlockState> states) {
+        if (states == null || !states.maybeHas(state -> getAbsorption(state) > 0.0)) {
+            return CLEAR_BRICKS;
+        }
+        float[] bricks = new float[64];
+        for (int by = 0; by < 4; by++) {
+            for (int bz = 0; bz < 4; bz++) {
+                for (int bx = 0; bx < 4; bx++) {
+                    bricks[bx + bz * 4 + by * 16] = summarizeBrick(states, bx * 4, by * 4, bz * 4);
+                }
+            }
+        }
+        return bricks;
+    }
+
+    private float summarizeBrick(PalettedContainer<BlockState> states, int x0, int y0, int z0) {
+        float value = (float) getAbsorption(states.get(x0, y0, z0));
+        for (int y = y0; y < y0 + 4; y++) {
+            for (int z = z0; z < z0 + 4; z++) {
+                for (int x = x0; x < x0 + 4; x++) {
+                    if ((float) getAbsorption(states.get(x, y, z)) != value) {
+                        return MIXED_BRICK;
+                    }
+                }
+            }
+        }
+        return value;
+    }
+
+    // Number of boundary crossings on one axis before tExit, at most 'remaining' (the ones left in the brick)
+    private static int stepsBefore(double tMax, double tDelta, double tExit, int remaining) {
+        if (remaining == 0 || tMax >= tExit) {
+            return 0;
+        }
+        return (int) Math.min(remaining, Math.floor((tExit - tMax) / tDelta) + 1);
+    }
+
+    private record TagRule(TagKey<Block> tag, double absorption) {
+    }
+}
@@ -0,0 +1,111 @@
+package mcjty.hazardous.data;
+
+import mcjty.hazardous.Hazardous;
+import mcjty.hazardous.data.objects.HazardType;
+import mcjty.hazardous.setup.Config;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraftforge.event.server.ServerStoppingEvent;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the ray part of prepared hazard evaluations (see HazardManager.prepareHazardValues) on a small pool of
+ * worker threads. There is at most one evaluation in flight per player. The same pool is used for other background
+ * work like HazardPropagation. All methods are main thread only.
+ */
+public class AsyncHazardEvaluator {
+
+    private static final Map<UUID, PendingEvaluation> PENDING = new HashMap<>();
+
+    private static ExecutorService executor = null;
+    private static int executorThreads = 0;
+
+    /**
+     * @param steps number of dose applications per hazard type (more than one when catching up)
+     */
+    public record Result(Map<ResourceLocation, HazardType> types, Map<ResourceLocation, Integer> steps, Map<ResourceLocation, Double> values) {
+    }
+
+    private record PendingEvaluation(Map<ResourceLocation, HazardType> types, Map<ResourceLocation, Integer> steps,
+                                     CompletableFuture<Map<ResourceLocation, Double>> future) {
+    }
+
+    public static boolean isBusy(UUID playerId) {
+        return PENDING.containsKey(playerId);
+    }
+
+    public static boolean hasResult(UUID playerId) {
+        PendingEvaluation pending = PENDING.get(playerId);
+        return pending != null && pending.future().isDone();
+    }
+
+    public static void submit(UUID playerId, Map<ResourceLocation, HazardType> types, Map<ResourceLocation, Integer> steps,
+                              HazardManager.PreparedEvaluation evaluation) {
+        PENDING.put(playerId, new PendingEvaluation(types, steps, CompletableFuture.supplyAsync(evaluation::complete, getExecutor())));
+    }
+
+    /**
+     * Run a task on the worker threads. The task must not touch the world.
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, getExecutor());
+    }
+
+    /**
+     * Return the result of the evaluation of this player if it is finished. Failed evaluations are logged and dropped.
+     */
+    @Nullable
+    public static Result poll(UUID playerId) {
+        PendingEvaluation pending = PENDING.get(playerId);
+        if (pending == null || !pending.future().isDone()) {
+            return null;
+        }
+        PENDING.remove(playerId);
+        try {
+            return new Result(pending.types(), pending.steps(), pending.future().get());
+        } catch (InterruptedException | ExecutionException e) {
+            Hazardous.LOGGER.error("Asynchronous hazard evaluation failed", e);
+            return null;
+        }
+    }
+
+    public static void forget(UUID playerId) {
+        PENDING.remove(playerId);
+    }
+
+    public static void onServerStopping(ServerStoppingEvent event) {
+        PENDING.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            executorThreads = 0;
+        }
+    }
+
+    private static ExecutorService getExecutor() {
+        int threads = Config.ASYNC_WORKER_THREADS.get();
+        if (executor == null || executorThreads != threads) {
+            if (executor != null) {
+                // Evaluations that are still running on the old pool will finish normally
+                executor.shutdown();
+            }
+            AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "Hazardous Worker " + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executorThreads = threads;
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,24 @@
+package mcjty.hazardous.data;
+
+import net.minecraft.world.level.block.state.BlockState;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Read access to block states for ray walks. Implemented on top of the live level and on top of snapshots.
+ */
+public interface BlockReader {
+
+    /**
+     * Return the block state at the given position or null if it is not available (chunk not loaded).
+     */
+    @Nullable
+    BlockState getBlockState(int x, int y, int z);
+
+    /**
+     * Absorption of the given model shared by all blocks of the 4x4x4 brick containing this position, or
+     * AbsorptionModel.MIXED_BRICK if they differ or the reader has no brick summaries.
+     */
+    default float getUniformBrickAbsorption(AbsorptionModel model, int x, int y, int z) {
+        return AbsorptionModel.MIXED_BRICK;
+    }
+}
@@ -0,0 +1,88 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Read-only copy of a set of chunk sections, taken on the main thread so that ray walks can run on worker threads.
+ * Sections that only contain air are not copied. Sections that were not captured (or were not loaded) read as null,
+ * just like unloaded chunks on a ChunkCursor. Brick summaries for absorption walks are built lazily per model
+ * and section, so a snapshot must only be used by one thread at a time.
+ */
+public class BlockSnapshot implements BlockReader {
+
+    private static final BlockState AIR = Blocks.AIR.defaultBlockState();
+    private static final BlockState VOID_AIR = Blocks.VOID_AIR.defaultBlockState();
+
+    private final int minSection;
+    private final int maxSection;
+    private final Long2ObjectOpenHashMap<PalettedContainer<BlockState>> sections;
+    private final Map<AbsorptionModel, Long2ObjectOpenHashMap<float[]>> bricks = new IdentityHashMap<>();
+
+    private BlockSnapshot(int minSection, int maxSection, Long2ObjectOpenHashMap<PalettedContainer<BlockState>> sections) {
+        this.minSection = minSection;
+        this.maxSection = maxSection;
+        this.sections = sections;
+    }
+
+    /**
+     * Copy the given sections (see SectionPos.asLong). Must be called on the main thread.
+     */
+    public static BlockSnapshot capture(ChunkCursor cursor, LongSet sectionKeys) {
+        Long2ObjectOpenHashMap<PalettedContainer<BlockState>> copies = new Long2ObjectOpenHashMap<>(sectionKeys.size());
+        LongIterator iterator = sectionKeys.iterator();
+        while (iterator.hasNext()) {
+            long key = iterator.nextLong();
+            LevelChunkSection section = cursor.getSection(SectionPos.x(key), SectionPos.y(key), SectionPos.z(key));
+            if (section == null) {
+                continue;
+            }
+            copies.put(key, section.hasOnlyAir() ? null : section.getStates().copy());
+        }
+        return new BlockSnapshot(cursor.getLevel().getMinSection(), cursor.getLevel().getMaxSection(), copies);
+    }
+
+    @Override
+    @Nullable
+    public BlockState getBlockState(int x, int y, int z) {
+        int sectionY = SectionPos.blockToSectionCoord(y);
+        if (sectionY < minSection || sectionY >= maxSection) {
+            return VOID_AIR;
+        }
+        long key = SectionPos.asLong(SectionPos.blockToSectionCoord(x), sectionY, SectionPos.blockToSectionCoord(z));
+        PalettedContainer<BlockState> states = sections.get(key);
+        if (states == null) {
+            return sections.containsKey(key) ? AIR : null;
+        }
+        return states.get(x & 15, y & 15, z & 15);
+    }
+
+    @Override
+    public float getUniformBrickAbsorption(AbsorptionModel model, int x, int y, int z) {
+        int sectionY = SectionPos.blockToSectionCoord(y);
+        if (sectionY < minSection || sectionY >= maxSection) {
+            return AbsorptionModel.MIXED_BRICK;
+        }
+        long key = SectionPos.asLong(SectionPos.blockToSectionCoord(x), sectionY, SectionPos.blockToSectionCoord(z));
+        if (!sections.containsKey(key)) {
+            return AbsorptionModel.MIXED_BRICK;
+        }
+        Long2ObjectOpenHashMap<float[]> summaries = bricks.computeIfAbsent(model, k -> new Long2ObjectOpenHashMap<>());
+        float[] summary = summaries.get(key);
+        if (summary == null) {
+            summary = model.summarizeBricks(sections.get(key));
+            summaries.put(key, summary);
+        }
+        return summary[((x & 15) >> 2) + ((z & 15) >> 2) * 4 + ((y & 15) >> 2) * 16];
+    }
+}
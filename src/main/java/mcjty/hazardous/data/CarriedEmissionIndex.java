@@ -0,0 +1,180 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.player.Inventory;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.AABB;
+import net.minecraftforge.event.level.LevelEvent;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * What every player carries for item associations: a stack multiplier per item source (see
+ * CompiledHazardPlan.getItemSources), only computed again when the inventory changes. Players that carry anything
+ * are bucketed per section once per tick so observers only look at carriers near them.
+ */
+public class CarriedEmissionIndex {
+
+    private static final Map<UUID, Emissions> EMISSIONS = new HashMap<>();
+    private static final Map<ResourceKey<Level>, CarriedEmissionIndex> INDICES = new HashMap<>();
+
+    private final CompiledHazardPlan plan;
+    private final long gameTime;
+    private final Reference2IntOpenHashMap<CompiledHazardPlan.CompiledSource> sourceIndices = new Reference2IntOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<List<Carrier>> cells = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * @param multipliers stack multiplier per item source, 0 if the player doesn't carry anything for it
+     */
+    public record Carrier(Player player, double[] multipliers) {
+    }
+
+    // Cached emissions of one player together with what they were computed from
+    private record Emissions(CompiledHazardPlan plan, int timesChanged, int fingerprint, @Nullable double[] multipliers) {
+    }
+
+    private CarriedEmissionIndex(CompiledHazardPlan plan, long gameTime) {
+        this.plan = plan;
+        this.gameTime = gameTime;
+        sourceIndices.defaultReturnValue(-1);
+    }
+
+    public static void onLevelUnload(LevelEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            INDICES.remove(level.dimension());
+        }
+    }
+
+    public static void forget(UUID playerId) {
+        EMISSIONS.remove(playerId);
+    }
+
+    /**
+     * Get the index for the current tick, building it if needed.
+     */
+    public static CarriedEmissionIndex get(ServerLevel level) {
+        CompiledHazardPlan plan = CompiledHazardPlan.get(level);
+        CarriedEmissionIndex index = INDICES.get(level.dimension());
+        if (index == null || index.plan != plan || index.gameTime != level.getGameTime()) {
+            index = build(level, plan);
+            INDICES.put(level.dimension(), index);
+        }
+        return index;
+    }
+
+    private static CarriedEmissionIndex build(ServerLevel level, CompiledHazardPlan plan) {
+        CarriedEmissionIndex index = new CarriedEmissionIndex(plan, level.getGameTime());
+        List<CompiledHazardPlan.CompiledSource> sources = plan.getItemSources();
+        if (sources.isEmpty()) {
+            return index;
+        }
+        for (int i = 0; i < sources.size(); i++) {
+            index.sourceIndices.put(sources.get(i), i);
+        }
+        for (Player player : level.players()) {
+            if (player.isRemoved()) {
+                continue;
+            }
+            double[] multipliers = getEmissions(player, plan);
+            if (multipliers != null) {
+                long key = SectionPos.asLong(player.blockPosition());
+                index.cells.computeIfAbsent(key, k -> new ArrayList<>()).add(new Carrier(player, multipliers));
+            }
+        }
+        return index;
+    }
+
+    @Nullable
+    private static double[] getEmissions(Player player, CompiledHazardPlan plan) {
+        Inventory inventory = player.getInventory();
+        int fingerprint = fingerprint(inventory, plan.getItemPredicates());
+        Emissions emissions = EMISSIONS.get(player.getUUID());
+        if (emissions == null || emissions.plan() != plan || emissions.timesChanged() != inventory.getTimesChanged()
+                || emissions.fingerprint() != fingerprint) {
+            emissions = new Emissions(plan, inventory.getTimesChanged(), fingerprint, computeEmissions(inventory, plan));
+            EMISSIONS.put(player.getUUID(), emissions);
+        }
+        return emissions.multipliers();
+    }
+
+    // Cheap check for changes that don't go through Inventory.setChanged() (like a stack that is shrunk directly).
+    // The nbt is only hashed for items that have nbt predicates
+    private static int fingerprint(Inventory inventory, ItemPredicateIndex predicates) {
+        int hash = 1;
+        for (int i = 0; i < inventory.getContainerSize(); i++) {
+            ItemStack stack = inventory.getItem(i);
+            if (stack.isEmpty()) {
+                hash = 31 * hash;
+                continue;
+            }
+            int stackHash = System.identityHashCode(stack.getItem()) * 31 + stack.getCount();
+            if (predicates.isNbtSensitive(stack.getItem())) {
+                stackHash = stackHash * 31 + Objects.hashCode(stack.getTag());
+            }
+            hash = 31 * hash + stackHash;
+        }
+        return hash;
+    }
+
+    @Nullable
+    private static double[] computeEmissions(Inventory inventory, CompiledHazardPlan plan) {
+        ItemPredicateIndex predicates = plan.getItemPredicates();
+        double[] multipliers = new double[plan.getItemSources().size()];
+        boolean any = false;
+        for (ItemStack stack : inventory.items) {
+            any |= predicates.accumulate(stack, multipliers);
+        }
+        for (ItemStack stack : inventory.offhand) {
+            any |= predicates.accumulate(stack, multipliers);
+        }
+        for (ItemStack stack : inventory.armor) {
+            any |= predicates.accumulate(stack, multipliers);
+        }
+        return any ? multipliers : null;
+    }
+
+    /**
+     * Index of this source in the multipliers of Carrier or -1 if the source is not part of the index.
+     */
+    public int getSourceIndex(CompiledHazardPlan.CompiledSource source) {
+        return sourceIndices.getInt(source);
+    }
+
+    /**
+     * Add all carriers whose bounding box intersects the bounds and that carry something for the given source.
+     */
+    public void collect(int sourceIndex, AABB bounds, List<Carrier> result) {
+        if (sourceIndex < 0 || cells.isEmpty()) {
+            return;
+        }
+        int minX = SectionPos.blockToSectionCoord((int) Math.floor(bounds.minX) - 1);
+        int minY = SectionPos.blockToSectionCoord((int) Math.floor(bounds.minY) - 2);
+        int minZ = SectionPos.blockToSectionCoord((int) Math.floor(bounds.minZ) - 1);
+        int maxX = SectionPos.blockToSectionCoord((int) Math.floor(bounds.maxX) + 1);
+        int maxY = SectionPos.blockToSectionCoord((int) Math.floor(bounds.maxY) + 2);
+        int maxZ = SectionPos.blockToSectionCoord((int) Math.floor(bounds.maxZ) + 1);
+        for (int sx = minX; sx <= maxX; sx++) {
+            for (int sz = minZ; sz <= maxZ; sz++) {
+                for (int sy = minY; sy <= maxY; sy++) {
+                    List<Carrier> cell = cells.get(SectionPos.asLong(sx, sy, sz));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Carrier carrier : cell) {
+                        if (carrier.multipliers()[sourceIndex] > 0.0 && !carrier.player().isRemoved()
+                                && carrier.player().getBoundingBox().intersects(bounds)) {
+                            result.add(carrier);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraftforge.event.level.BlockEvent;
+import net.minecraftforge.event.level.ChunkEvent;
+import net.minecraftforge.event.level.LevelEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers when the blocks of a loaded chunk last changed (or the chunk was loaded) so that cached results
+ * can check if anything in their range changed since they were computed. Stamps come from a single counter
+ * that only goes up. Unloaded chunks are not kept: they count as changed since the last chunk unload in the level,
+ * which is conservative but keeps the tracker as big as the set of loaded chunks.
+ */
+public class ChunkChangeTracker {
+
+    private static final Map<ResourceKey<Level>, LevelStamps> STAMPS = new HashMap<>();
+    private static long counter = 0;
+
+    public static void onNeighborNotify(BlockEvent.NeighborNotifyEvent event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            BlockPos pos = event.getPos();
+            markChanged(level, SectionPos.blockToSectionCoord(pos.getX()), SectionPos.blockToSectionCoord(pos.getZ()));
+        }
+    }
+
+    public static void onChunkLoad(ChunkEvent.Load event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            ChunkPos pos = event.getChunk().getPos();
+            markChanged(level, pos.x, pos.z);
+        }
+    }
+
+    public static void onChunkUnload(ChunkEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            LevelStamps stamps = STAMPS.get(level.dimension());
+            if (stamps != null) {
+                stamps.chunks.remove(event.getChunk().getPos().toLong());
+                stamps.lastUnload = ++counter;
+            }
+        }
+    }
+
+    public static void onLevelUnload(LevelEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            STAMPS.remove(level.dimension());
+        }
+    }
+
+    /**
+     * The current stamp. Anything that changes after this call gets a higher stamp.
+     */
+    public static long current() {
+        return counter;
+    }
+
+    /**
+     * True if a chunk in the given range of chunk coordinates (inclusive) changed after 'stamp'.
+     */
+    public static boolean changedSince(Level level, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ, long stamp) {
+        LevelStamps stamps = STAMPS.get(level.dimension());
+        if (stamps == null) {
+            return false;
+        }
+        for (int cx = minChunkX; cx <= maxChunkX; cx++) {
+            for (int cz = minChunkZ; cz <= maxChunkZ; cz++) {
+                if (stamps.chunks.getOrDefault(ChunkPos.asLong(cx, cz), stamps.lastUnload) > stamp) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void markChanged(ServerLevel level, int chunkX, int chunkZ) {
+        STAMPS.computeIfAbsent(level.dimension(), k -> new LevelStamps()).chunks.put(ChunkPos.asLong(chunkX, chunkZ), ++counter);
+    }
+
+    private static class LevelStamps {
+        // Per loaded chunk the stamp of its last change
+        private final Long2LongOpenHashMap chunks = new Long2LongOpenHashMap();
+        // Stamp of the last chunk unload, used for all chunks without an entry
+        private long lastUnload = 0;
+    }
+}
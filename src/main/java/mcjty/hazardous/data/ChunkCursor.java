@@ -0,0 +1,116 @@
+package mcjty.hazardous.data;
+
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.level.ServerChunkCache;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Remembers the last chunk and section that was resolved so that walks through the world (rays, columns)
+ * only go through the chunk map when they cross a chunk or section boundary. Block states are read directly
+ * from the section. A cursor is only valid for the duration of a single evaluation.
+ */
+public class ChunkCursor implements BlockReader {
+
+    private static final BlockState VOID_AIR = Blocks.VOID_AIR.defaultBlockState();
+
+    private final Level level;
+
+    private boolean hasChunk = false;
+    private int chunkX;
+    private int chunkZ;
+    @Nullable private LevelChunk chunk;
+
+    private int sectionIndex = -1;
+    @Nullable private LevelChunkSection section;
+
+    public ChunkCursor(Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Return the chunk at the given chunk coordinates if it is fully loaded. Never loads or generates chunks.
+     */
+    @Nullable
+    public static LevelChunk getLoadedChunk(Level level, int chunkX, int chunkZ) {
+        if (level instanceof ServerLevel serverLevel) {
+            ServerChunkCache chunkSource = serverLevel.getChunkSource();
+            if (chunkSource.mainThread == Thread.currentThread()) {
+                return chunkSource.getChunkNow(chunkX, chunkZ);
+            }
+            return chunkSource.hasChunk(chunkX, chunkZ) ? serverLevel.getChunk(chunkX, chunkZ) : null;
+        }
+        return level.hasChunk(chunkX, chunkZ) ? level.getChunk(chunkX, chunkZ) : null;
+    }
+
+    public boolean isLoaded(int x, int z) {
+        return getChunk(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(z)) != null;
+    }
+
+    @Nullable
+    public LevelChunk getChunk(int chunkX, int chunkZ) {
+        if (!hasChunk || chunkX != this.chunkX || chunkZ != this.chunkZ) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.chunk = getLoadedChunk(level, chunkX, chunkZ);
+            this.hasChunk = true;
+            this.sectionIndex = -1;
+            this.section = null;
+        }
+        return chunk;
+    }
+
+    /**
+     * Return the section at the given section coordinates or null if it is outside the level or its chunk is not loaded.
+     */
+    @Nullable
+    public LevelChunkSection getSection(int sectionX, int sectionY, int sectionZ) {
+        LevelChunk c = getChunk(sectionX, sectionZ);
+        if (c == null) {
+            return null;
+        }
+        int index = level.getSectionIndexFromSectionY(sectionY);
+        if (index < 0 || index >= level.getSectionsCount()) {
+            return null;
+        }
+        if (index != sectionIndex) {
+            sectionIndex = index;
+            section = c.getSection(index);
+        }
+        return section;
+    }
+
+    /**
+     * Return the block state at the given position or null if the chunk is not loaded.
+     * Positions outside the build height are void air, like Level.getBlockState.
+     */
+    @Override
+    @Nullable
+    public BlockState getBlockState(int x, int y, int z) {
+        LevelChunk c = getChunk(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(z));
+        if (c == null) {
+            return null;
+        }
+        int index = level.getSectionIndex(y);
+        if (index < 0 || index >= level.getSectionsCount()) {
+            return VOID_AIR;
+        }
+        if (index != sectionIndex) {
+            sectionIndex = index;
+            section = c.getSection(index);
+        }
+        if (section.hasOnlyAir()) {
+            return Blocks.AIR.defaultBlockState();
+        }
+        return section.getBlockState(x & 15, y & 15, z & 15);
+    }
+}
@@ -0,0 +1,306 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import mcjty.hazardous.data.objects.HazardSource;
+import mcjty.hazardous.data.objects.HazardType;
+import mcjty.hazardous.setup.Config;
+import mcjty.lib.varia.Tools;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Registry;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.tags.TagKey;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraftforge.registries.ForgeRegistries;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Immutable view of all enabled hazard sources with their registry lookups already resolved.
+ * Sources are grouped per hazard type and per dimension so the player tick only visits sources that can apply.
+ * Absorption tables for all hazard types are built here as well.
+ * The plan is rebuilt after a datapack sync and lazily after a config reload.
+ */
+public class CompiledHazardPlan {
+
+    private static volatile CompiledHazardPlan current = null;
+
+    private final Registry<HazardSource> registry;
+    private final Registry<HazardType> typeRegistry;
+    private final Map<ResourceLocation, TypePlan> types;
+    private final List<CompiledSource> blockSources;
+    private final List<CompiledSource> itemSources;
+    private final List<CompiledSource> entitySources;
+    private final ItemPredicateIndex itemPredicates;
+    private final ItemPredicateIndex entityPredicates;
+    private final Map<HazardType.Blocking.Absorption, AbsorptionModel> absorptionModels;
+
+    private CompiledHazardPlan(Registry<HazardSource> registry, Registry<HazardType> typeRegistry, Map<ResourceLocation, TypePlan> types,
+                               List<CompiledSource> blockSources, List<CompiledSource> itemSources, List<CompiledSource> entitySources,
+                               Map<HazardType.Blocking.Absorption, AbsorptionModel> absorptionModels) {
+        this.registry = registry;
+        this.typeRegistry = typeRegistry;
+        this.types = types;
+        this.blockSources = blockSources;
+        this.itemSources = itemSources;
+        this.entitySources = entitySources;
+        this.itemPredicates = ItemPredicateIndex.build(itemSources, source -> ((HazardSource.Association.Item) source.association()).stacks());
+        this.entityPredicates = ItemPredicateIndex.build(entitySources, source -> ((HazardSource.Association.EntityType) source.association()).stacks());
+        this.absorptionModels = absorptionModels;
+    }
+
+    /**
+     * Get the plan for the registries of this level, compiling it first if needed.
+     */
+    public static CompiledHazardPlan get(Level level) {
+        RegistryAccess access = Tools.getRegistryAccess(level);
+        Registry<HazardSource> sources = access.registryOrThrow(CustomRegistries.HAZARD_SOURCE_REGISTRY_KEY);
+        Registry<HazardType> hazardTypes = access.registryOrThrow(CustomRegistries.HAZARD_TYPE_REGISTRY_KEY);
+        CompiledHazardPlan plan = current;
+        if (plan == null || plan.registry != sources || plan.typeRegistry != hazardTypes) {
+            plan = compile(sources, hazardTypes);
+            current = plan;
+        }
+        return plan;
+    }
+
+    public static void rebuild(RegistryAccess access) {
+        current = compile(access.registryOrThrow(CustomRegistries.HAZARD_SOURCE_REGISTRY_KEY),
+                access.registryOrThrow(CustomRegistries.HAZARD_TYPE_REGISTRY_KEY));
+    }
+
+    /**
+     * Forget the current plan. Safe to call from any thread, the plan is compiled again on next use.
+     */
+    public static void invalidate() {
+        current = null;
+    }
+
+    /**
+     * All enabled sources for a hazard type that can apply in the given dimension.
+     */
+    public List<CompiledSource> getSources(ResourceLocation typeId, ResourceLocation dimension) {
+        TypePlan plan = types.get(typeId);
+        if (plan == null) {
+            return List.of();
+        }
+        return plan.perLevel().getOrDefault(dimension, plan.anyLevel());
+    }
+
+    public List<CompiledSource> getBlockSources() {
+        return blockSources;
+    }
+
+    public List<CompiledSource> getItemSources() {
+        return itemSources;
+    }
+
+    public List<CompiledSource> getEntitySources() {
+        return entitySources;
+    }
+
+    /**
+     * Stack predicates of the item sources, source indices follow getItemSources().
+     */
+    public ItemPredicateIndex getItemPredicates() {
+        return itemPredicates;
+    }
+
+    /**
+     * Stack predicates of the entity sources (for item entities), source indices follow getEntitySources().
+     */
+    public ItemPredicateIndex getEntityPredicates() {
+        return entityPredicates;
+    }
+
+    public AbsorptionModel getAbsorptionModel(HazardType.Blocking.Absorption absorption) {
+        AbsorptionModel model = absorptionModels.get(absorption);
+        if (model == null) {
+            // Only possible for a hazard type that is not in the registry this plan was compiled from
+            model = AbsorptionModel.build(absorption);
+        }
+        return model;
+    }
+
+    private static CompiledHazardPlan compile(Registry<HazardSource> registry, Registry<HazardType> typeRegistry) {
+        Map<ResourceLocation, List<CompiledSource>> anyLevel = new HashMap<>();
+        Map<ResourceLocation, Map<ResourceLocation, List<CompiledSource>>> perLevel = new HashMap<>();
+        List<CompiledSource> blockSources = new ArrayList<>();
+        List<CompiledSource> itemSources = new ArrayList<>();
+        List<CompiledSource> entitySources = new ArrayList<>();
+
+        List<Map.Entry<ResourceKey<HazardSource>, HazardSource>> entries = new ArrayList<>(registry.entrySet());
+        entries.sort(Comparator.comparing(entry -> entry.getKey().location().toString()));
+        for (Map.Entry<ResourceKey<HazardSource>, HazardSource> entry : entries) {
+            ResourceLocation sourceId = entry.getKey().location();
+            if (!Config.isHazardSourceEnabled(sourceId)) {
+                continue;
+            }
+            CompiledSource source = CompiledSource.create(sourceId, entry.getValue());
+            ResourceLocation typeId = source.source().hazardType();
+            ResourceLocation dimension = getDimension(source.source().association());
+            if (dimension == null) {
+                anyLevel.computeIfAbsent(typeId, id -> new ArrayList<>()).add(source);
+            } else {
+                perLevel.computeIfAbsent(typeId, id -> new HashMap<>()).computeIfAbsent(dimension, id -> new ArrayList<>()).add(source);
+            }
+            if (source.source().association() instanceof HazardSource.Association.Block) {
+                blockSources.add(source);
+            } else if (source.source().association() instanceof HazardSource.Association.Item) {
+                itemSources.add(source);
+            } else if (source.source().association() instanceof HazardSource.Association.EntityType) {
+                entitySources.add(source);
+            }
+        }
+
+        Set<ResourceLocation> typeIds = new HashSet<>(anyLevel.keySet());
+        typeIds.addAll(perLevel.keySet());
+        Map<ResourceLocation, TypePlan> types = new HashMap<>();
+        for (ResourceLocation typeId : typeIds) {
+            List<CompiledSource> global = List.copyOf(anyLevel.getOrDefault(typeId, List.of()));
+            Map<ResourceLocation, List<CompiledSource>> levels = new HashMap<>();
+            perLevel.getOrDefault(typeId, Map.of()).forEach((dimension, sources) -> {
+                List<CompiledSource> merged = new ArrayList<>(global);
+                merged.addAll(sources);
+                levels.put(dimension, List.copyOf(merged));
+            });
+            types.put(typeId, new TypePlan(global, Map.copyOf(levels)));
+        }
+
+        Map<HazardType.Blocking.Absorption, AbsorptionModel> absorptionModels = new HashMap<>();
+        for (HazardType type : typeRegistry) {
+            if (type.blocking() instanceof HazardType.Blocking.Absorption absorption) {
+                absorptionModels.computeIfAbsent(absorption, AbsorptionModel::build);
+            }
+        }
+        return new CompiledHazardPlan(registry, typeRegistry, Map.copyOf(types), List.copyOf(blockSources), List.copyOf(itemSources), List.copyOf(entitySources),
+                Map.copyOf(absorptionModels));
+    }
+
+    @Nullable
+    private static ResourceLocation getDimension(HazardSource.Association association) {
+        if (association instanceof HazardSource.Association.Level level) {
+            return level.level();
+        }
+        if (association instanceof HazardSource.Association.Locations locations) {
+            return locations.level();
+        }
+        return null;
+    }
+
+    private record TypePlan(List<CompiledSource> anyLevel, Map<ResourceLocation, List<CompiledSource>> perLevel) {
+    }
+
+    /**
+     * A single enabled hazard source together with the runtime objects its association refers to.
+     *
+     * @param effectiveRadius for point sources the distance (in blocks) beyond which the source can't contribute
+     *                        anymore because falloff and air attenuation bring it below the cutoff. Never more than
+     *                        maxDistance. 0 for other transmissions
+     * @param falloffTable    precomputed intensities for point sources at block positions (block and locations
+     *                        associations), null if not used
+     * @param octree          the positions of a locations point source for clustered evaluation, null otherwise
+     */
+    public record CompiledSource(ResourceLocation id, HazardSource source,
+                                 @Nullable Block block, @Nullable TagKey<Block> blockTag,
+                                 List<EntityType<?>> entityTypes, int effectiveRadius,
+                                 @Nullable FalloffTable falloffTable, @Nullable SourceOctree octree) {
+
+        private static CompiledSource create(ResourceLocation id, HazardSource source) {
+            Block block = null;
+            TagKey<Block> blockTag = null;
+            List<EntityType<?>> entityTypes = List.of();
+            if (source.association() instanceof HazardSource.Association.Block a) {
+                if (a.isTag()) {
+                    blockTag = TagKey.create(Registries.BLOCK, a.blockOrTag());
+                } else if (BuiltInRegistries.BLOCK.containsKey(a.blockOrTag())) {
+                    block = BuiltInRegistries.BLOCK.get(a.blockOrTag());
+                }
+            } else if (source.association() instanceof HazardSource.Association.EntityType a) {
+                List<EntityType<?>> resolved = new ArrayList<>();
+                for (ResourceLocation entityTypeId : a.entityTypes()) {
+                    if (!ForgeRegistries.ENTITY_TYPES.containsKey(entityTypeId)) {
+                        continue;
+                    }
+                    EntityType<?> entityType = ForgeRegistries.ENTITY_TYPES.getValue(entityTypeId);
+                    if (entityType != null && !resolved.contains(entityType)) {
+                        resolved.add(entityType);
+                    }
+                }
+                entityTypes = List.copyOf(resolved);
+            }
+            int effectiveRadius = computeEffectiveRadius(source);
+            FalloffTable falloffTable = null;
+            if (source.transmission() instanceof HazardSource.Transmission.Point t
+                    && (source.association() instanceof HazardSource.Association.Block || source.association() instanceof HazardSource.Association.Locations)) {
+                falloffTable = FalloffTable.build(t, source.falloff(), effectiveRadius, Config.FALLOFF_TABLE_TOLERANCE.get());
+            }
+            SourceOctree octree = null;
+            if (source.transmission() instanceof HazardSource.Transmission.Point
+                    && source.association() instanceof HazardSource.Association.Locations a && !a.positions().isEmpty()) {
+                LongArrayList positions = new LongArrayList(a.positions().size());
+                for (BlockPos pos : a.positions()) {
+                    positions.add(pos.asLong());
+                }
+                octree = SourceOctree.build(positions);
+            }
+            return new CompiledSource(id, source, block, blockTag, entityTypes, effectiveRadius, falloffTable, octree);
+        }
+
+        private static int computeEffectiveRadius(HazardSource source) {
+            if (!(source.transmission() instanceof HazardSource.Transmission.Point t) || t.maxDistance() <= 0) {
+                return 0;
+            }
+            int maxDistance = t.maxDistance();
+            HazardSource.Falloff falloff = source.falloff();
+            // Stack multipliers can be arbitrarily large so the cutoff can't be moved for sources that use them
+            if (source.association() instanceof HazardSource.Association.Item
+                    || (source.association() instanceof HazardSource.Association.EntityType a && !a.stacks().isEmpty())) {
+                return maxDistance;
+            }
+            // The search below needs an intensity that doesn't grow with distance
+            if (t.airAttenuationPerBlock() < 0 || (falloff instanceof HazardSource.Falloff.Exponential e && e.k() < 0)) {
+                return maxDistance;
+            }
+            if (FalloffTable.compute(t, falloff, maxDistance) > HazardManager.MIN_EFFECTIVE_RADIATION) {
+                return maxDistance;
+            }
+            if (FalloffTable.compute(t, falloff, 0.0) <= HazardManager.MIN_EFFECTIVE_RADIATION) {
+                return 0;
+            }
+            double low = 0.0;
+            double high = maxDistance;
+            while (high - low > 0.01) {
+                double mid = (low + high) / 2.0;
+                if (FalloffTable.compute(t, falloff, mid) > HazardManager.MIN_EFFECTIVE_RADIATION) {
+                    low = mid;
+                } else {
+                    high = mid;
+                }
+            }
+            // One block extra because scans measure from the block the player is in and not from the player itself
+            return Math.min(maxDistance, (int) Math.ceil(high) + 1);
+        }
+
+        public HazardSource.Association association() {
+            return source.association();
+        }
+
+        /**
+         * Only meaningful for block associations. Unknown blocks never match.
+         */
+        public boolean matches(BlockState state) {
+            if (blockTag != null) {
+                return state.is(blockTag);
+            }
+            return block != null && state.is(block);
+        }
+    }
+}
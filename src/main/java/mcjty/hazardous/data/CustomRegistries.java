@@ -107,6 +107,7 @@ public class CustomRegistries {
 
         validateHazardTypes(hazardTypeMap);
         validateSources(hazardTypeMap, sources);
+        CompiledHazardPlan.rebuild(access);
     }
 
 }
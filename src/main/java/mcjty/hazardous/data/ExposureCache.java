@@ -0,0 +1,100 @@
+package mcjty.hazardous.data;
+
+import mcjty.hazardous.data.objects.HazardSource;
+import mcjty.hazardous.setup.Config;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Per player cache of the contribution of every hazard source. A cached value is reused as long as the player
+ * stays in the same block, no chunk in range of the source changed (see ChunkChangeTracker) and the value is
+ * not too old. Sources that depend on entities, players, time or weather use a shorter maximum age.
+ */
+public class ExposureCache {
+
+    private static final Map<UUID, ExposureCache> CACHES = new HashMap<>();
+
+    private final CompiledHazardPlan plan;
+    private final Map<CompiledHazardPlan.CompiledSource, Entry> entries = new IdentityHashMap<>();
+
+    private ExposureCache(CompiledHazardPlan plan) {
+        this.plan = plan;
+    }
+
+    private record Entry(ResourceKey<Level> dimension, long blockPos, long gameTime, long stamp, double value) {
+    }
+
+    /**
+     * Return the cache for this player or null if caching is disabled. The cache is cleared when the plan changes.
+     */
+    @Nullable
+    public static ExposureCache get(Player player, CompiledHazardPlan plan) {
+        if (Config.EXPOSURE_CACHE_MAX_AGE.get() <= 0) {
+            CACHES.remove(player.getUUID());
+            return null;
+        }
+        ExposureCache cache = CACHES.get(player.getUUID());
+        if (cache == null || cache.plan != plan) {
+            cache = new ExposureCache(plan);
+            CACHES.put(player.getUUID(), cache);
+        }
+        return cache;
+    }
+
+    public static void forget(UUID playerId) {
+        CACHES.remove(playerId);
+    }
+
+    @Nullable
+    public Double get(CompiledHazardPlan.CompiledSource source, Player player) {
+        Entry entry = entries.get(source);
+        if (entry == null) {
+            return null;
+        }
+        Level level = player.level();
+        if (entry.dimension() != level.dimension() || entry.blockPos() != player.blockPosition().asLong()) {
+            return null;
+        }
+        if (level.getGameTime() - entry.gameTime() >= getMaxAge(source)) {
+            return null;
+        }
+        int radius = getRadius(source);
+        int minChunkX = SectionPos.blockToSectionCoord(player.getBlockX() - radius);
+        int minChunkZ = SectionPos.blockToSectionCoord(player.getBlockZ() - radius);
+        int maxChunkX = SectionPos.blockToSectionCoord(player.getBlockX() + radius);
+        int maxChunkZ = SectionPos.blockToSectionCoord(player.getBlockZ() + radius);
+        if (ChunkChangeTracker.changedSince(level, minChunkX, minChunkZ, maxChunkX, maxChunkZ, entry.stamp())) {
+            return null;
+        }
+        return entry.value();
+    }
+
+    public void put(CompiledHazardPlan.CompiledSource source, Player player, double value) {
+        Level level = player.level();
+        entries.put(source, new Entry(level.dimension(), player.blockPosition().asLong(), level.getGameTime(), ChunkChangeTracker.current(), value));
+    }
+
+    private static int getMaxAge(CompiledHazardPlan.CompiledSource source) {
+        int maxAge = Config.EXPOSURE_CACHE_MAX_AGE.get();
+        HazardSource.Association association = source.association();
+        if (association instanceof HazardSource.Association.EntityType
+                || association instanceof HazardSource.Association.Item
+                || source.source().transmission() instanceof HazardSource.Transmission.Sky) {
+            return Math.min(maxAge, Config.EXPOSURE_CACHE_DYNAMIC_MAX_AGE.get());
+        }
+        return maxAge;
+    }
+
+    // Distance from the player in which block changes can affect the value of this source
+    private static int getRadius(CompiledHazardPlan.CompiledSource source) {
+        return Math.max(1, source.effectiveRadius());
+    }
+}
@@ -0,0 +1,81 @@
+package mcjty.hazardous.data;
+
+import mcjty.hazardous.data.objects.HazardSource;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Falloff times air attenuation of a point source, precomputed for every squared integer distance up to the
+ * effective radius of the source. Lookups interpolate linearly between two entries. Parts of the table where
+ * interpolation is not accurate enough (close to the source for inverse square falloff) are computed exactly.
+ */
+public class FalloffTable {
+
+    // Larger tables (sources with a huge range) are not worth the memory
+    private static final int MAX_ENTRIES = 1 << 16;
+
+    private final HazardSource.Transmission.Point point;
+    private final HazardSource.Falloff falloff;
+    private final double[] values;
+    // Squared distances below this are computed exactly
+    private final int exactBelow;
+
+    private FalloffTable(HazardSource.Transmission.Point point, HazardSource.Falloff falloff, double[] values, int exactBelow) {
+        this.point = point;
+        this.falloff = falloff;
+        this.values = values;
+        this.exactBelow = exactBelow;
+    }
+
+    /**
+     * Build a table for a point source up to the given radius. Returns null if the table would not help.
+     *
+     * @param tolerance maximum relative error of an interpolated value. 0 disables tables
+     */
+    @Nullable
+    public static FalloffTable build(HazardSource.Transmission.Point point, HazardSource.Falloff falloff, int radius, double tolerance) {
+        if (tolerance <= 0.0 || radius <= 0 || (long) radius * radius + 1 > MAX_ENTRIES) {
+            return null;
+        }
+        int size = radius * radius + 1;
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = compute(point, falloff, Math.sqrt(i));
+        }
+        // Check the middle of every segment, the last one that is too far off decides where the table starts
+        int exactBelow = 0;
+        for (int i = 0; i < size - 1; i++) {
+            double exact = compute(point, falloff, Math.sqrt(i + 0.5));
+            double interpolated = (values[i] + values[i + 1]) / 2.0;
+            if (Math.abs(interpolated - exact) > tolerance * Math.max(exact, HazardManager.MIN_EFFECTIVE_RADIATION)) {
+                exactBelow = i + 1;
+            }
+        }
+        if (exactBelow >= size - 1) {
+            return null;
+        }
+        return new FalloffTable(point, falloff, values, exactBelow);
+    }
+
+    /**
+     * Falloff times air attenuation of a point source at distance d (without the minimum intensity cutoff).
+     */
+    public static double compute(HazardSource.Transmission.Point point, HazardSource.Falloff falloff, double d) {
+        if (point.maxDistance() > 0 && d > point.maxDistance()) {
+            return 0.0;
+        }
+        double atten = point.airAttenuationPerBlock() > 0 ? Math.exp(-point.airAttenuationPerBlock() * d) : 1.0;
+        return Math.max(0.0, falloff.apply(point.baseIntensity(), d, point.maxDistance()) * atten);
+    }
+
+    /**
+     * Same as compute() but for a squared distance, using the table where possible.
+     */
+    public double get(double distSq) {
+        if (distSq < exactBelow || distSq >= values.length - 1) {
+            return compute(point, falloff, Math.sqrt(distSq));
+        }
+        int i = (int) distSq;
+        double frac = distSq - i;
+        return values[i] + (values[i + 1] - values[i]) * frac;
+    }
+}
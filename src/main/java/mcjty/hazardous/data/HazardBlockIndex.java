@@ -0,0 +1,469 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.shorts.ShortIterator;
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Holder;
+import net.minecraft.core.SectionPos;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.tags.TagKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraftforge.event.level.BlockEvent;
+import net.minecraftforge.event.level.ChunkEvent;
+import net.minecraftforge.event.level.LevelEvent;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Server side index of all block positions that match the block association of at least one enabled hazard source.
+ * Chunks are scanned when they load and are kept up to date with block change notifications so that block sources
+ * only have to visit positions that actually contain a matching block. The index is saved with the world
+ * (see HazardIndexStorage) so sections that didn't change don't have to be scanned again.
+ */
+public class HazardBlockIndex {
+
+    private static final Map<ResourceKey<Level>, LevelIndex> INDICES = new HashMap<>();
+    private static final ChunkEntry EMPTY_CHUNK = new ChunkEntry(new ShortOpenHashSet[0]);
+    // Number of distinct states of which scanSection remembers if they match
+    private static final int SEEN_STATES = 8;
+
+    private static CompiledHazardPlan indexedPlan = null;
+    private static BlockMatcher matcher = BlockMatcher.NONE;
+
+    public static void onChunkLoad(ChunkEvent.Load event) {
+        if (event.getLevel() instanceof ServerLevel level && event.getChunk() instanceof LevelChunk chunk) {
+            LevelIndex index = getLevelIndex(level);
+            index.chunks.put(chunk.getPos().toLong(), loadOrScanChunk(level, index, chunk));
+        }
+    }
+
+    public static void onChunkUnload(ChunkEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            LevelIndex index = INDICES.get(level.dimension());
+            if (index != null) {
+                ChunkPos pos = event.getChunk().getPos();
+                ChunkEntry entry = index.chunks.remove(pos.toLong());
+                boolean dirty = index.dirty.remove(pos.toLong());
+                if (entry != null && dirty && CompiledHazardPlan.get(level) == indexedPlan) {
+                    storeChunk(level, pos, entry);
+                }
+            }
+        }
+    }
+
+    public static void onLevelSave(LevelEvent.Save event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            LevelIndex index = INDICES.get(level.dimension());
+            if (index != null && CompiledHazardPlan.get(level) == indexedPlan) {
+                // Only chunks that were scanned or changed since they were last stored
+                LongIterator iterator = index.dirty.iterator();
+                while (iterator.hasNext()) {
+                    ChunkPos pos = new ChunkPos(iterator.nextLong());
+                    ChunkEntry entry = index.chunks.get(pos.toLong());
+                    if (entry != null) {
+                        storeChunk(level, pos, entry);
+                    }
+                    iterator.remove();
+                }
+            }
+            HazardIndexStorage.flush(level);
+        }
+    }
+
+    public static void onLevelUnload(LevelEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            INDICES.remove(level.dimension());
+            HazardIndexStorage.forget(level);
+        }
+    }
+
+    public static void onNeighborNotify(BlockEvent.NeighborNotifyEvent event) {
+        if (!(event.getLevel() instanceof ServerLevel level)) {
+            return;
+        }
+        LevelIndex index = getLevelIndex(level);
+        BlockPos pos = event.getPos();
+        long chunkKey = ChunkPos.asLong(SectionPos.blockToSectionCoord(pos.getX()), SectionPos.blockToSectionCoord(pos.getZ()));
+        ChunkEntry entry = index.chunks.get(chunkKey);
+        if (entry == null) {
+            // Not indexed yet. The chunk will be scanned completely on first use
+            return;
+        }
+        int sectionIndex = level.getSectionIndex(pos.getY());
+        if (sectionIndex < 0 || sectionIndex >= level.getSectionsCount()) {
+            return;
+        }
+        boolean matches = matcher.matches(event.getState());
+        ShortOpenHashSet positions = entry == EMPTY_CHUNK ? null : entry.sections[sectionIndex];
+        if (matches || (positions != null && positions.contains(SectionPos.sectionRelativePos(pos)))) {
+            // Also when a matching block is replaced by another one that matches different sources
+            entry.octrees = null;
+        }
+        if (matches) {
+            if (entry == EMPTY_CHUNK) {
+                entry = new ChunkEntry(new ShortOpenHashSet[level.getSectionsCount()]);
+                index.chunks.put(chunkKey, entry);
+            }
+            if (positions == null) {
+                positions = new ShortOpenHashSet();
+                entry.sections[sectionIndex] = positions;
+            }
+            if (positions.add(SectionPos.sectionRelativePos(pos))) {
+                index.dirty.add(chunkKey);
+            }
+        } else if (positions != null && positions.remove(SectionPos.sectionRelativePos(pos))) {
+            index.dirty.add(chunkKey);
+            if (positions.isEmpty()) {
+                entry.sections[sectionIndex] = null;
+            }
+        }
+    }
+
+    /**
+     * Add the packed positions (see {@link BlockPos#asLong()}) of all indexed blocks inside the given box to 'result'.
+     * Positions in unloaded chunks are never returned. Callers must still verify the block state at the
+     * position because the index contains blocks for all block sources and may lag behind block updates
+     * that do not notify neighbours.
+     */
+    public static void collect(ServerLevel level, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, LongList result) {
+        LevelIndex index = getLevelIndex(level);
+        if (matcher.isEmpty()) {
+            return;
+        }
+        int minSectionY = Math.max(SectionPos.blockToSectionCoord(minY), level.getMinSection());
+        int maxSectionY = Math.min(SectionPos.blockToSectionCoord(maxY), level.getMaxSection() - 1);
+        for (int cx = SectionPos.blockToSectionCoord(minX); cx <= SectionPos.blockToSectionCoord(maxX); cx++) {
+            for (int cz = SectionPos.blockToSectionCoord(minZ); cz <= SectionPos.blockToSectionCoord(maxZ); cz++) {
+                ChunkEntry entry = getChunkEntry(level, index, cx, cz);
+                if (entry == null || entry == EMPTY_CHUNK) {
+                    continue;
+                }
+                for (int sy = minSectionY; sy <= maxSectionY; sy++) {
+                    ShortOpenHashSet positions = entry.sections[level.getSectionIndexFromSectionY(sy)];
+                    if (positions == null) {
+                        continue;
+                    }
+                    SectionPos sectionPos = SectionPos.of(cx, sy, cz);
+                    ShortIterator iterator = positions.iterator();
+                    while (iterator.hasNext()) {
+                        short packed = iterator.nextShort();
+                        int x = sectionPos.relativeToBlockX(packed);
+                        int y = sectionPos.relativeToBlockY(packed);
+                        int z = sectionPos.relativeToBlockZ(packed);
+                        if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+                            result.add(BlockPos.asLong(x, y, z));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Octree of the indexed positions in a chunk that hold a block matching the given block source, for clustered
+     * evaluation. Built on first use for every source and chunk and kept until a block in the chunk changes.
+     * Returns null if the chunk is not loaded or has no matching blocks.
+     */
+    @Nullable
+    public static SourceOctree getOctree(ServerLevel level, int chunkX, int chunkZ, CompiledHazardPlan.CompiledSource source) {
+        LevelIndex index = getLevelIndex(level);
+        if (matcher.isEmpty()) {
+            return null;
+        }
+        ChunkEntry entry = getChunkEntry(level, index, chunkX, chunkZ);
+        if (entry == null || entry == EMPTY_CHUNK) {
+            return null;
+        }
+        if (entry.octrees == null) {
+            entry.octrees = new IdentityHashMap<>();
+        }
+        Optional<SourceOctree> octree = entry.octrees.get(source);
+        if (octree == null) {
+            octree = Optional.ofNullable(buildOctree(level, entry, chunkX, chunkZ, source));
+            entry.octrees.put(source, octree);
+        }
+        return octree.orElse(null);
+    }
+
+    @Nullable
+    private static SourceOctree buildOctree(ServerLevel level, ChunkEntry entry, int chunkX, int chunkZ, CompiledHazardPlan.CompiledSource source) {
+        LevelChunk chunk = level.getChunkSource().getChunkNow(chunkX, chunkZ);
+        if (chunk == null) {
+            return null;
+        }
+        LongArrayList positions = new LongArrayList();
+        BlockPos.MutableBlockPos mutable = new BlockPos.MutableBlockPos();
+        for (int i = 0; i < entry.sections.length; i++) {
+            ShortOpenHashSet section = entry.sections[i];
+            if (section == null) {
+                continue;
+            }
+            SectionPos sectionPos = SectionPos.of(chunkX, level.getSectionYFromSectionIndex(i), chunkZ);
+            ShortIterator iterator = section.iterator();
+            while (iterator.hasNext()) {
+                short packed = iterator.nextShort();
+                mutable.set(sectionPos.relativeToBlockX(packed), sectionPos.relativeToBlockY(packed), sectionPos.relativeToBlockZ(packed));
+                if (source.matches(chunk.getBlockState(mutable))) {
+                    positions.add(mutable.asLong());
+                }
+            }
+        }
+        return positions.isEmpty() ? null : SourceOctree.build(positions);
+    }
+
+    @Nullable
+    private static ChunkEntry getChunkEntry(ServerLevel level, LevelIndex index, int chunkX, int chunkZ) {
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        ChunkEntry entry = index.chunks.get(key);
+        if (entry == null) {
+            // Chunks that were loaded before the last reset are indexed lazily
+            LevelChunk chunk = level.getChunkSource().getChunkNow(chunkX, chunkZ);
+            if (chunk == null) {
+                return null;
+            }
+            entry = loadOrScanChunk(level, index, chunk);
+            index.chunks.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static ChunkEntry loadOrScanChunk(ServerLevel level, LevelIndex index, LevelChunk chunk) {
+        if (matcher.isEmpty()) {
+            return EMPTY_CHUNK;
+        }
+        ShortOpenHashSet[] sections = HazardIndexStorage.load(level, chunk.getPos(), matcher.fingerprint());
+        if (sections == null || sections.length != chunk.getSections().length) {
+            index.dirty.add(chunk.getPos().toLong());
+            return scanChunk(chunk);
+        }
+        if (validateSections(chunk, sections)) {
+            index.dirty.add(chunk.getPos().toLong());
+        }
+        for (ShortOpenHashSet positions : sections) {
+            if (positions != null) {
+                return new ChunkEntry(sections);
+            }
+        }
+        return EMPTY_CHUNK;
+    }
+
+    /**
+     * Blocks can change without neighbor updates while the index isn't looking (/fill, structures, other mods
+     * changing the saved chunk), so a saved section is only kept if the number of matching blocks in the section
+     * (counted on the palette storage) is the number of saved positions and all saved positions still match. Then
+     * the saved positions are exactly the matching blocks. Other sections are scanned again. Returns true if a
+     * section had to be scanned.
+     */
+    private static boolean validateSections(LevelChunk chunk, ShortOpenHashSet[] sections) {
+        LevelChunkSection[] chunkSections = chunk.getSections();
+        boolean rescanned = false;
+        for (int i = 0; i < chunkSections.length; i++) {
+            LevelChunkSection section = chunkSections[i];
+            ShortOpenHashSet positions = sections[i];
+            int saved = positions == null ? 0 : positions.size();
+            if (section.hasOnlyAir() || !section.maybeHas(matcher::matches)) {
+                if (saved != 0) {
+                    sections[i] = null;
+                    rescanned = true;
+                }
+                continue;
+            }
+            if (!isSectionValid(section, positions, saved)) {
+                sections[i] = scanSection(section);
+                rescanned = true;
+            }
+        }
+        return rescanned;
+    }
+
+    // The caller already skipped sections of which the palette has no matching state
+    private static boolean isSectionValid(LevelChunkSection section, @Nullable ShortOpenHashSet positions, int saved) {
+        if (!section.maybeHas(state -> !matcher.matches(state))) {
+            // Every state in the palette matches, so every block does. No need to count
+            return saved == LevelChunkSection.SECTION_SIZE;
+        }
+        int[] matching = {0};
+        section.getStates().count((state, count) -> {
+            if (matcher.matches(state)) {
+                matching[0] += count;
+            }
+        });
+        if (matching[0] != saved) {
+            return false;
+        }
+        if (positions != null) {
+            ShortIterator iterator = positions.iterator();
+            while (iterator.hasNext()) {
+                short packed = iterator.nextShort();
+                if (!matcher.matches(section.getBlockState((packed >> 8) & 15, packed & 15, (packed >> 4) & 15))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void storeChunk(ServerLevel level, ChunkPos pos, ChunkEntry entry) {
+        if (!matcher.isEmpty()) {
+            HazardIndexStorage.store(level, pos, matcher.fingerprint(), entry.sections());
+        }
+    }
+
+    private static ChunkEntry scanChunk(LevelChunk chunk) {
+        if (matcher.isEmpty()) {
+            return EMPTY_CHUNK;
+        }
+        LevelChunkSection[] sections = chunk.getSections();
+        ShortOpenHashSet[] found = null;
+        for (int i = 0; i < sections.length; i++) {
+            LevelChunkSection section = sections[i];
+            // The palette tells us cheaply if a section can contain any indexed block at all
+            if (section.hasOnlyAir() || !section.maybeHas(matcher::matches)) {
+                continue;
+            }
+            ShortOpenHashSet positions = scanSection(section);
+            if (positions != null) {
+                if (found == null) {
+                    found = new ShortOpenHashSet[sections.length];
+                }
+                found[i] = positions;
+            }
+        }
+        return found == null ? EMPTY_CHUNK : new ChunkEntry(found);
+    }
+
+    // A section has few distinct states, so the matcher is evaluated once per state instead of once per block
+    @Nullable
+    private static ShortOpenHashSet scanSection(LevelChunkSection section) {
+        ShortOpenHashSet positions = null;
+        BlockState[] seen = new BlockState[SEEN_STATES];
+        boolean[] seenMatches = new boolean[SEEN_STATES];
+        int seenCount = 0;
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    BlockState state = section.getBlockState(x, y, z);
+                    int i = 0;
+                    while (i < seenCount && seen[i] != state) {
+                        i++;
+                    }
+                    boolean matches;
+                    if (i < seenCount) {
+                        matches = seenMatches[i];
+                    } else {
+                        matches = matcher.matches(state);
+                        if (seenCount < SEEN_STATES) {
+                            seen[seenCount] = state;
+                            seenMatches[seenCount++] = matches;
+                        }
+                    }
+                    if (matches) {
+                        if (positions == null) {
+                            positions = new ShortOpenHashSet();
+                        }
+                        positions.add((short) (x << 8 | z << 4 | y));
+                    }
+                }
+            }
+        }
+        return positions;
+    }
+
+    private static LevelIndex getLevelIndex(ServerLevel level) {
+        CompiledHazardPlan plan = CompiledHazardPlan.get(level);
+        if (plan != indexedPlan) {
+            // Sources changed (datapack or config reload). Chunks are indexed again on first use
+            indexedPlan = plan;
+            INDICES.clear();
+            matcher = BlockMatcher.create(plan.getBlockSources());
+        }
+        return INDICES.computeIfAbsent(level.dimension(), k -> new LevelIndex());
+    }
+
+    private static class LevelIndex {
+        private final Long2ObjectOpenHashMap<ChunkEntry> chunks = new Long2ObjectOpenHashMap<>();
+        // Chunks of which the entry differs from the saved one
+        private final LongOpenHashSet dirty = new LongOpenHashSet();
+    }
+
+    private static class ChunkEntry {
+        private final ShortOpenHashSet[] sections;
+        // Positions per block source that matches in this chunk, built on first use and dropped when a block changes
+        @Nullable private Map<CompiledHazardPlan.CompiledSource, Optional<SourceOctree>> octrees = null;
+
+        private ChunkEntry(ShortOpenHashSet[] sections) {
+            this.sections = sections;
+        }
+
+        private ShortOpenHashSet[] sections() {
+            return sections;
+        }
+    }
+
+    /**
+     * Matches any block that is used by the block association of an enabled hazard source.
+     */
+    private record BlockMatcher(Set<Block> blocks, List<TagKey<Block>> tags, int fingerprint) {
+        private static final BlockMatcher NONE = new BlockMatcher(Set.of(), List.of(), 0);
+
+        private static BlockMatcher create(List<CompiledHazardPlan.CompiledSource> sources) {
+            Set<Block> blocks = new HashSet<>();
+            List<TagKey<Block>> tags = new ArrayList<>();
+            for (CompiledHazardPlan.CompiledSource source : sources) {
+                if (source.blockTag() != null) {
+                    if (!tags.contains(source.blockTag())) {
+                        tags.add(source.blockTag());
+                    }
+                } else if (source.block() != null) {
+                    blocks.add(source.block());
+                }
+            }
+            return new BlockMatcher(blocks, tags, computeFingerprint(blocks, tags));
+        }
+
+        // Identifies the set of matching blocks (tags are expanded) so saved entries can be checked
+        private static int computeFingerprint(Set<Block> blocks, List<TagKey<Block>> tags) {
+            Set<Block> all = new HashSet<>(blocks);
+            for (TagKey<Block> tag : tags) {
+                for (Holder<Block> holder : BuiltInRegistries.BLOCK.getTagOrEmpty(tag)) {
+                    all.add(holder.value());
+                }
+            }
+            List<String> ids = new ArrayList<>();
+            for (Block block : all) {
+                ids.add(BuiltInRegistries.BLOCK.getKey(block).toString());
+            }
+            Collections.sort(ids);
+            return ids.hashCode();
+        }
+
+        private boolean isEmpty() {
+            return blocks.isEmpty() && tags.isEmpty();
+        }
+
+        private boolean matches(BlockState state) {
+            if (blocks.contains(state.getBlock())) {
+                return true;
+            }
+            for (TagKey<Block> tag : tags) {
+                if (state.is(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import mcjty.hazardous.data.objects.HazardSource;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.entity.item.ItemEntity;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.AABB;
+import net.minecraftforge.event.level.LevelEvent;
+
+import java.util.*;
+
+/**
+ * All entities of a level that match at least one entity type association, bucketed per section (16x16x16).
+ * The index is built at most once per tick (on first use) and shared by all players that are evaluated in that tick.
+ * Stack multipliers (for item entities) are computed once per entity and source.
+ */
+public class HazardEntityIndex {
+
+    private static final Map<ResourceKey<Level>, HazardEntityIndex> INDICES = new HashMap<>();
+    // Entities are bucketed by position, so look a bit further to catch entities with a large bounding box
+    private static final int BOUNDS_MARGIN = 4;
+
+    private final CompiledHazardPlan plan;
+    private final long gameTime;
+    private final Reference2IntOpenHashMap<CompiledHazardPlan.CompiledSource> sourceIndices = new Reference2IntOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<List<IndexedEntity>> cells = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * @param multipliers stack multiplier per entity source (see CompiledHazardPlan.getEntitySources), 0 if it doesn't match
+     */
+    public record IndexedEntity(Entity entity, double[] multipliers) {
+    }
+
+    private HazardEntityIndex(CompiledHazardPlan plan, long gameTime) {
+        this.plan = plan;
+        this.gameTime = gameTime;
+        sourceIndices.defaultReturnValue(-1);
+    }
+
+    public static void onLevelUnload(LevelEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            INDICES.remove(level.dimension());
+        }
+    }
+
+    /**
+     * Get the index for the current tick, building it if needed.
+     */
+    public static HazardEntityIndex get(ServerLevel level) {
+        CompiledHazardPlan plan = CompiledHazardPlan.get(level);
+        HazardEntityIndex index = INDICES.get(level.dimension());
+        if (index == null || index.plan != plan || index.gameTime != level.getGameTime()) {
+            index = build(level, plan);
+            INDICES.put(level.dimension(), index);
+        }
+        return index;
+    }
+
+    private static HazardEntityIndex build(ServerLevel level, CompiledHazardPlan plan) {
+        HazardEntityIndex index = new HazardEntityIndex(plan, level.getGameTime());
+        List<CompiledHazardPlan.CompiledSource> sources = plan.getEntitySources();
+        if (sources.isEmpty()) {
+            return index;
+        }
+        Set<EntityType<?>> entityTypes = new HashSet<>();
+        for (int i = 0; i < sources.size(); i++) {
+            index.sourceIndices.put(sources.get(i), i);
+            entityTypes.addAll(sources.get(i).entityTypes());
+        }
+        for (Entity entity : level.getAllEntities()) {
+            if (entity.isRemoved() || !entityTypes.contains(entity.getType())) {
+                continue;
+            }
+            double[] multipliers = null;
+            for (int i = 0; i < sources.size(); i++) {
+                CompiledHazardPlan.CompiledSource source = sources.get(i);
+                if (!source.entityTypes().contains(entity.getType())) {
+                    continue;
+                }
+                double multiplier = getStackMultiplier(entity, source, i, plan.getEntityPredicates());
+                if (multiplier > 0.0) {
+                    if (multipliers == null) {
+                        multipliers = new double[sources.size()];
+                    }
+                    multipliers[i] = multiplier;
+                }
+            }
+            if (multipliers != null) {
+                long key = SectionPos.asLong(entity.blockPosition());
+                index.cells.computeIfAbsent(key, k -> new ArrayList<>()).add(new IndexedEntity(entity, multipliers));
+            }
+        }
+        return index;
+    }
+
+    private static double getStackMultiplier(Entity entity, CompiledHazardPlan.CompiledSource source, int sourceIndex, ItemPredicateIndex predicates) {
+        HazardSource.Association.EntityType association = (HazardSource.Association.EntityType) source.association();
+        if (!(entity instanceof ItemEntity itemEntity) || association.stacks().isEmpty()) {
+            return 1.0;
+        }
+        return predicates.getMultiplier(sourceIndex, itemEntity.getItem());
+    }
+
+    /**
+     * Index of this source in the multipliers of IndexedEntity or -1 if the source is not part of the index.
+     */
+    public int getSourceIndex(CompiledHazardPlan.CompiledSource source) {
+        return sourceIndices.getInt(source);
+    }
+
+    /**
+     * Add all indexed entities whose bounding box intersects the bounds and that match the given source.
+     */
+    public void collect(int sourceIndex, AABB bounds, List<IndexedEntity> result) {
+        if (sourceIndex < 0 || cells.isEmpty()) {
+            return;
+        }
+        int minX = SectionPos.blockToSectionCoord((int) Math.floor(bounds.minX) - BOUNDS_MARGIN);
+        int minY = SectionPos.blockToSectionCoord((int) Math.floor(bounds.minY) - BOUNDS_MARGIN);
+        int minZ = SectionPos.blockToSectionCoord((int) Math.floor(bounds.minZ) - BOUNDS_MARGIN);
+        int maxX = SectionPos.blockToSectionCoord((int) Math.floor(bounds.maxX) + BOUNDS_MARGIN);
+        int maxY = SectionPos.blockToSectionCoord((int) Math.floor(bounds.maxY) + BOUNDS_MARGIN);
+        int maxZ = SectionPos.blockToSectionCoord((int) Math.floor(bounds.maxZ) + BOUNDS_MARGIN);
+        for (int sx = minX; sx <= maxX; sx++) {
+            for (int sz = minZ; sz <= maxZ; sz++) {
+                for (int sy = minY; sy <= maxY; sy++) {
+                    List<IndexedEntity> cell = cells.get(SectionPos.asLong(sx, sy, sz));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (IndexedEntity indexed : cell) {
+                        if (indexed.multipliers()[sourceIndex] > 0.0 && !indexed.entity().isRemoved()
+                                && indexed.entity().getBoundingBox().intersects(bounds)) {
+                            result.add(indexed);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
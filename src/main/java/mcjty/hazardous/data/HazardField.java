@@ -0,0 +1,138 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import mcjty.hazardous.data.objects.HazardSource;
+import mcjty.hazardous.data.objects.HazardType;
+import mcjty.hazardous.setup.Config;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraftforge.event.level.ChunkEvent;
+import net.minecraftforge.event.level.LevelEvent;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional field mode for static point sources (blocks, locations and city buildings). Their combined exposure
+ * (including blocking) is sampled per hazard type on a grid with one sample every BRICK blocks, and a player gets
+ * the trilinear interpolation of the eight samples around their feet. A sample is computed again when a chunk
+ * within the effective radius of the sources changed. Samples are kept per chunk and dropped when it unloads.
+ */
+public class HazardField {
+
+    public static final int BRICK = 4;
+
+    private static final Map<ResourceKey<Level>, HazardField> FIELDS = new HashMap<>();
+
+    private final CompiledHazardPlan plan;
+    // Chunk -> hazard type -> grid position -> sample
+    private final Long2ObjectOpenHashMap<Map<ResourceLocation, Long2ObjectOpenHashMap<Sample>>> columns = new Long2ObjectOpenHashMap<>();
+
+    private record Sample(double value, long stamp) {
+    }
+
+    private HazardField(CompiledHazardPlan plan) {
+        this.plan = plan;
+    }
+
+    public static boolean isEnabled() {
+        return Config.HAZARD_FIELD_MODE.get();
+    }
+
+    /**
+     * True if this source doesn't move and is evaluated through the field when field mode is enabled.
+     */
+    public static boolean isFieldSource(CompiledHazardPlan.CompiledSource source) {
+        HazardSource.Association association = source.association();
+        return source.source().transmission() instanceof HazardSource.Transmission.Point
+                && (association instanceof HazardSource.Association.Block
+                || association instanceof HazardSource.Association.Locations
+                || association instanceof HazardSource.Association.City);
+    }
+
+    public static HazardField get(Level level) {
+        CompiledHazardPlan plan = CompiledHazardPlan.get(level);
+        HazardField field = FIELDS.get(level.dimension());
+        if (field == null || field.plan != plan) {
+            field = new HazardField(plan);
+            FIELDS.put(level.dimension(), field);
+        }
+        return field;
+    }
+
+    public static void onChunkUnload(ChunkEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            HazardField field = FIELDS.get(level.dimension());
+            if (field != null) {
+                field.columns.remove(event.getChunk().getPos().toLong());
+            }
+        }
+    }
+
+    public static void onLevelUnload(LevelEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            FIELDS.remove(level.dimension());
+        }
+    }
+
+    /**
+     * Exposure to the given field sources (all for the same hazard type) of a player with their feet at this position.
+     */
+    public double sample(Level level, ResourceLocation typeId, HazardType type, List<CompiledHazardPlan.CompiledSource> sources,
+                         double x, double y, double z) {
+        int radius = 0;
+        for (CompiledHazardPlan.CompiledSource source : sources) {
+            radius = Math.max(radius, source.effectiveRadius());
+        }
+        double gx = x / BRICK;
+        double gy = y / BRICK;
+        double gz = z / BRICK;
+        int x0 = Mth.floor(gx);
+        int y0 = Mth.floor(gy);
+        int z0 = Mth.floor(gz);
+        double fx = gx - x0;
+        double fy = gy - y0;
+        double fz = gz - z0;
+        double[] corners = new double[8];
+        for (int i = 0; i < 8; i++) {
+            corners[i] = getSample(level, typeId, type, sources, radius,
+                    (x0 + (i & 1)) * BRICK, (y0 + ((i >> 1) & 1)) * BRICK, (z0 + ((i >> 2) & 1)) * BRICK);
+        }
+        return Math.max(0.0, Mth.lerp3(fx, fy, fz,
+                corners[0], corners[1], corners[2], corners[3],
+                corners[4], corners[5], corners[6], corners[7]));
+    }
+
+    private double getSample(Level level, ResourceLocation typeId, HazardType type, List<CompiledHazardPlan.CompiledSource> sources,
+                             int radius, int x, int y, int z) {
+        int chunkX = SectionPos.blockToSectionCoord(x);
+        int chunkZ = SectionPos.blockToSectionCoord(z);
+        Map<ResourceLocation, Long2ObjectOpenHashMap<Sample>> column = columns.get(ChunkPos.asLong(chunkX, chunkZ));
+        Long2ObjectOpenHashMap<Sample> samples = column == null ? null : column.get(typeId);
+        long key = BlockPos.asLong(x, y, z);
+        Sample sample = samples == null ? null : samples.get(key);
+        if (sample != null && !ChunkChangeTracker.changedSince(level,
+                SectionPos.blockToSectionCoord(x - radius), SectionPos.blockToSectionCoord(z - radius),
+                SectionPos.blockToSectionCoord(x + radius), SectionPos.blockToSectionCoord(z + radius), sample.stamp())) {
+            return sample.value();
+        }
+        long stamp = ChunkChangeTracker.current();
+        double value = HazardManager.computeFieldSample(level, type, sources, x, y, z);
+        // Samples are dropped on chunk unload so only keep them for loaded chunks
+        if (samples == null && ChunkCursor.getLoadedChunk(level, chunkX, chunkZ) != null) {
+            samples = columns.computeIfAbsent(ChunkPos.asLong(chunkX, chunkZ), k -> new HashMap<>())
+                    .computeIfAbsent(typeId, k -> new Long2ObjectOpenHashMap<>());
+        }
+        if (samples != null) {
+            samples.put(key, new Sample(value, stamp));
+        }
+        return value;
+    }
+}
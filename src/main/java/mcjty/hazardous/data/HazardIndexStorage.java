@@ -0,0 +1,308 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.shorts.ShortIterator;
+import it.unimi.dsi.fastutil.shorts.ShortOpenHashSet;
+import mcjty.hazardous.Hazardous;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.dimension.DimensionType;
+import net.minecraft.world.level.storage.LevelResource;
+import net.minecraftforge.event.server.ServerStoppedEvent;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Saves the chunk entries of HazardBlockIndex with the world so chunks don't have to be scanned again after a
+ * restart. Chunks are grouped per region (32x32 chunks) in 'data/hazardous/r.X.Z.bin' in the dimension folder.
+ * Region files are read into memory on first use and only the entries that are asked for are decoded.
+ * An entry is only returned if it was written for the same block sources (fingerprint). HazardBlockIndex still
+ * checks it against the blocks of the chunk because blocks can change without the index noticing. Main thread only,
+ * except for the writing of region files: a flush encodes the regions on the main thread and hands the bytes to a
+ * single IO thread (like vanilla's IOWorker). The encoded region stays in memory so reads never wait for the disk.
+ *
+ * File format: magic, version, 1024 entry offsets (0 = no entry) and then the entries. An entry is the fingerprint,
+ * the number of sections with positions and per section its index, the number of positions and the packed positions.
+ */
+public class HazardIndexStorage {
+
+    // 'HZIX'
+    private static final int MAGIC = 0x485a4958;
+    private static final int VERSION = 2;
+    private static final int REGION_CHUNKS = 32 * 32;
+    private static final int HEADER_SIZE = 8 + REGION_CHUNKS * 4;
+
+    private static final Map<ResourceKey<Level>, Long2ObjectOpenHashMap<Region>> REGIONS = new HashMap<>();
+
+    // One thread so writes of the same region happen in the order they were flushed
+    private static final ExecutorService IO = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Hazardous Index IO");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Region {
+        private final Path file;
+        private boolean opened = false;
+        @Nullable private ByteBuffer buffer = null;
+        // Entries written since the last flush, by index in the region
+        private final Int2ObjectOpenHashMap<byte[]> pending = new Int2ObjectOpenHashMap<>();
+        // Set by the IO thread when writing the file failed, the buffer is written again on the next flush
+        private volatile boolean writeFailed = false;
+
+        private Region(Path file) {
+            this.file = file;
+        }
+
+        @Nullable
+        private ByteBuffer getBuffer() {
+            if (!opened) {
+                opened = true;
+                buffer = read(file);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Load the sections of a chunk (indexed like LevelChunk.getSections, null for sections without positions).
+     * Returns null if there is no valid entry for this chunk.
+     */
+    @Nullable
+    public static ShortOpenHashSet[] load(ServerLevel level, ChunkPos pos, int fingerprint) {
+        Region region = getRegion(level, pos);
+        int index = getIndex(pos);
+        byte[] pending = region.pending.get(index);
+        ByteBuffer entry;
+        if (pending != null) {
+            entry = ByteBuffer.wrap(pending);
+        } else {
+            ByteBuffer buffer = region.getBuffer();
+            if (buffer == null) {
+                return null;
+            }
+            int offset = buffer.getInt(8 + index * 4);
+            if (offset == 0) {
+                return null;
+            }
+            entry = buffer.duplicate();
+            entry.position(offset);
+        }
+        try {
+            if (entry.getInt() != fingerprint) {
+                return null;
+            }
+            ShortOpenHashSet[] sections = new ShortOpenHashSet[level.getSectionsCount()];
+            int count = entry.getShort();
+            for (int i = 0; i < count; i++) {
+                int sectionIndex = entry.getShort();
+                int positions = entry.getShort() & 0xffff;
+                ShortOpenHashSet set = new ShortOpenHashSet(positions);
+                for (int p = 0; p < positions; p++) {
+                    set.add(entry.getShort());
+                }
+                if (sectionIndex < 0 || sectionIndex >= sections.length) {
+                    return null;
+                }
+                sections[sectionIndex] = set;
+            }
+            return sections;
+        } catch (RuntimeException e) {
+            Hazardous.LOGGER.warn("Corrupt hazard index entry for chunk {} in {}", pos, region.file);
+            return null;
+        }
+    }
+
+    /**
+     * Remember the sections of a chunk. They are written to disk on the next flush.
+     */
+    public static void store(ServerLevel level, ChunkPos pos, int fingerprint, ShortOpenHashSet[] sections) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(fingerprint);
+            int count = 0;
+            for (ShortOpenHashSet positions : sections) {
+                if (positions != null && !positions.isEmpty()) {
+                    count++;
+                }
+            }
+            out.writeShort(count);
+            for (int i = 0; i < sections.length; i++) {
+                ShortOpenHashSet positions = sections[i];
+                if (positions == null || positions.isEmpty()) {
+                    continue;
+                }
+                out.writeShort(i);
+                out.writeShort(positions.size());
+                ShortIterator iterator = positions.iterator();
+                while (iterator.hasNext()) {
+                    out.writeShort(iterator.nextShort());
+                }
+            }
+        } catch (IOException e) {
+            // Can't happen for a byte array
+            throw new IllegalStateException(e);
+        }
+        getRegion(level, pos).pending.put(getIndex(pos), bytes.toByteArray());
+    }
+
+    /**
+     * Write all regions of this level with pending entries. The regions are encoded here, the files are written
+     * on the IO thread.
+     */
+    public static void flush(ServerLevel level) {
+        Long2ObjectOpenHashMap<Region> regions = REGIONS.get(level.dimension());
+        if (regions == null) {
+            return;
+        }
+        for (Region region : regions.values()) {
+            if (region.pending.isEmpty() && !region.writeFailed) {
+                continue;
+            }
+            byte[] bytes = encode(region);
+            // The encoded region replaces the old file contents in memory, so the pending entries can go
+            region.buffer = ByteBuffer.wrap(bytes);
+            region.opened = true;
+            region.pending.clear();
+            region.writeFailed = false;
+            IO.execute(() -> write(region, bytes));
+        }
+    }
+
+    public static void forget(ServerLevel level) {
+        REGIONS.remove(level.dimension());
+    }
+
+    /**
+     * Levels are saved (and flushed) when the server stops. Wait for those writes so the files are complete
+     * before the process exits or the world is opened again.
+     */
+    public static void onServerStopped(ServerStoppedEvent event) {
+        try {
+            IO.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Hazardous.LOGGER.error("Could not finish writing the hazard index", e);
+        }
+    }
+
+    private static byte[] encode(Region region) {
+        ByteBuffer old = region.getBuffer();
+        byte[][] entries = new byte[REGION_CHUNKS][];
+        int size = HEADER_SIZE;
+        for (int i = 0; i < REGION_CHUNKS; i++) {
+            byte[] pending = region.pending.get(i);
+            entries[i] = pending != null ? pending : readEntry(old, i);
+            size += entries[i] == null ? 0 : entries[i].length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        int offset = HEADER_SIZE;
+        for (byte[] entry : entries) {
+            out.putInt(entry == null ? 0 : offset);
+            offset += entry == null ? 0 : entry.length;
+        }
+        for (byte[] entry : entries) {
+            if (entry != null) {
+                out.put(entry);
+            }
+        }
+        return out.array();
+    }
+
+    // IO thread
+    private static void write(Region region, byte[] bytes) {
+        try {
+            Files.createDirectories(region.file.getParent());
+            Path tmp = region.file.resolveSibling(region.file.getFileName() + ".tmp");
+            Files.write(tmp, bytes);
+            try {
+                Files.move(tmp, region.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, region.file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Hazardous.LOGGER.error("Could not write hazard index {}", region.file, e);
+            region.writeFailed = true;
+        }
+    }
+
+    // Copy of an existing entry from the old file (the entry is self-delimiting)
+    @Nullable
+    private static byte[] readEntry(@Nullable ByteBuffer buffer, int index) {
+        if (buffer == null) {
+            return null;
+        }
+        int offset = buffer.getInt(8 + index * 4);
+        if (offset == 0) {
+            return null;
+        }
+        try {
+            int position = offset + 4;
+            int count = buffer.getShort(position);
+            position += 2;
+            for (int i = 0; i < count; i++) {
+                int positions = buffer.getShort(position + 2) & 0xffff;
+                position += 4 + positions * 2;
+            }
+            byte[] entry = new byte[position - offset];
+            buffer.get(offset, entry);
+            return entry;
+        } catch (RuntimeException e) {
+            // Corrupt, drop it
+            return null;
+        }
+    }
+
+    // Region files are small, a heap buffer doesn't keep the file open or mapped so it can be replaced on any OS
+    @Nullable
+    private static ByteBuffer read(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                Hazardous.LOGGER.warn("Ignoring hazard index {} with an unknown format", file);
+                return null;
+            }
+            return buffer;
+        } catch (IOException e) {
+            Hazardous.LOGGER.error("Could not read hazard index {}", file, e);
+            return null;
+        }
+    }
+
+    private static Region getRegion(ServerLevel level, ChunkPos pos) {
+        long key = ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ());
+        return REGIONS.computeIfAbsent(level.dimension(), k -> new Long2ObjectOpenHashMap<>())
+                .computeIfAbsent(key, k -> new Region(getFolder(level).resolve("r." + pos.getRegionX() + "." + pos.getRegionZ() + ".bin")));
+    }
+
+    private static Path getFolder(ServerLevel level) {
+        Path root = level.getServer().getWorldPath(LevelResource.ROOT);
+        return DimensionType.getStorageFolder(level.dimension(), root).resolve("data").resolve(Hazardous.MODID);
+    }
+
+    private static int getIndex(ChunkPos pos) {
+        return pos.getRegionLocalX() + pos.getRegionLocalZ() * 32;
+    }
+}
@@ -1,6 +1,7 @@
 package mcjty.hazardous.data;
 
-import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import mcjty.hazardous.compat.LostCityCompat;
 import mcjty.hazardous.data.objects.HazardSource;
 import mcjty.hazardous.data.objects.HazardType;
@@ -9,27 +10,19 @@ import mcjty.lib.varia.Tools;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Registry;
 import net.minecraft.core.SectionPos;
-import net.minecraft.core.registries.BuiltInRegistries;
-import net.minecraft.core.registries.Registries;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.ResourceLocation;
-import net.minecraft.server.level.ServerChunkCache;
 import net.minecraft.server.level.ServerLevel;
-import net.minecraft.tags.TagKey;
 import net.minecraft.util.Mth;
 import net.minecraft.world.entity.Entity;
-import net.minecraft.world.entity.item.ItemEntity;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.item.ItemStack;
-import net.minecraft.world.level.ClipContext;
+import net.minecraft.world.level.EmptyBlockGetter;
 import net.minecraft.world.level.Level;
-import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.state.BlockState;
-import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.chunk.LevelChunkSection;
 import net.minecraft.world.phys.AABB;
-import net.minecraft.world.phys.HitResult;
-import net.minecraft.world.phys.Vec3;
-import net.minecraftforge.registries.ForgeRegistries;
+import net.minecraft.world.phys.shapes.CollisionContext;
 import org.apache.commons.lang3.tuple.Pair;
 import org.jetbrains.annotations.Nullable;
 
@@ -37,40 +30,185 @@ import java.util.*;
 
 public class HazardManager {
 
-    private static final double MIN_EFFECTIVE_RADIATION = 1.0e-6;
+    static final double MIN_EFFECTIVE_RADIATION = 1.0e-6;
     private static final int OUTSIDE_CITY_SOURCE_SEARCH_RADIUS = 128;
+    // Where rays end on a standing player, relative to their feet
+    private static final double BODY_OFFSET = 0.6;
+    private static final double EYE_HEIGHT = 1.62;
     private static final Map<Pair<ResourceKey<Level>, ResourceLocation>, Double> lastCachedValue = new HashMap<>();
-    private static final Map<HazardType.Blocking.Absorption, AbsorptionModel> ABSORPTION_MODELS = new HashMap<>();
 
     public record TooltipEmission(ResourceLocation hazardTypeId, double intensity) {
     }
 
     public static double getHazardValue(HazardType type, Level level, Player player) {
-        Registry<HazardSource> sources = Tools.getRegistryAccess(level).registryOrThrow(CustomRegistries.HAZARD_SOURCE_REGISTRY_KEY);
         Registry<HazardType> types = Tools.getRegistryAccess(level).registryOrThrow(CustomRegistries.HAZARD_TYPE_REGISTRY_KEY);
-
         ResourceLocation typeId = types.getKey(type);
+        if (typeId == null) {
+            return 0.0;
+        }
+        return getHazardValues(level, player, Map.of(typeId, type)).get(typeId);
+    }
 
+    /**
+     * Compute the current exposure for all given hazard types in a single pass. Work that does not depend
+     * on the hazard type (nearby entities and players, sky state, block candidates) is only done once.
+     */
+    public static Map<ResourceLocation, Double> getHazardValues(Level level, Player player, Map<ResourceLocation, HazardType> types) {
+        Map<ResourceLocation, Double> values = evaluate(level, new PlayerTickVisitor(player), types);
+        recordValues(level, values);
+        return values;
+    }
+
+    /**
+     * First (main thread) part of an asynchronous evaluation. Everything except the blocking of point sources is
+     * computed right away. For the point sources the sections crossed by their rays are copied so that
+     * PreparedEvaluation.complete() can trace them on a worker thread.
+     */
+    public static PreparedEvaluation prepareHazardValues(Level level, Player player, Map<ResourceLocation, HazardType> types) {
         var visitor = new PlayerTickVisitor(player);
-        double value = 0.0;
-        // Always compute the current exposure value here. Any tick-based throttling is handled by callers.
-        for (HazardSource source : sources) {
-            ResourceLocation sourceId = sources.getKey(source);
-            if (sourceId == null || !Config.isHazardSourceEnabled(sourceId)) {
-                continue;
+        visitor.deferred = new ArrayList<>();
+        Map<ResourceLocation, Double> baseValues = evaluate(level, visitor, types);
+
+        LongOpenHashSet sections = new LongOpenHashSet();
+        for (DeferredRay ray : visitor.deferred) {
+            collectSections(ray.x(), ray.y(), ray.z(), visitor.targetX, visitor.targetBodyY, visitor.targetZ, sections);
+            collectSections(ray.x(), ray.y(), ray.z(), visitor.targetX, visitor.targetHeadY, visitor.targetZ, sections);
+        }
+        BlockSnapshot snapshot = BlockSnapshot.capture(visitor.cursor, sections);
+        return new PreparedEvaluation(baseValues, visitor.deferred, snapshot,
+                visitor.targetX, visitor.targetBodyY, visitor.targetHeadY, visitor.targetZ);
+    }
+
+    /**
+     * Remember the values of a finished evaluation (see getLastCachedValue). Main thread only.
+     */
+    public static void recordValues(Level level, Map<ResourceLocation, Double> values) {
+        for (Map.Entry<ResourceLocation, Double> entry : values.entrySet()) {
+            lastCachedValue.put(Pair.of(level.dimension(), entry.getKey()), entry.getValue());
+        }
+    }
+
+    private static Map<ResourceLocation, Double> evaluate(Level level, PlayerTickVisitor visitor, Map<ResourceLocation, HazardType> types) {
+        CompiledHazardPlan plan = CompiledHazardPlan.get(level);
+        ResourceLocation dimension = level.dimension().location();
+        HazardPropagation propagation = HazardPropagation.isEnabled() && level instanceof ServerLevel serverLevel ? HazardPropagation.get(serverLevel) : null;
+        HazardField field = HazardField.isEnabled() ? HazardField.get(level) : null;
+
+        for (ResourceLocation typeId : types.keySet()) {
+            for (CompiledHazardPlan.CompiledSource source : plan.getSources(typeId, dimension)) {
+                if ((propagation == null || !HazardPropagation.isPropagated(source)) && (field == null || !HazardField.isFieldSource(source))) {
+                    visitor.include(source);
+                }
             }
-            ResourceLocation hazardId = source.hazardType();
-            if (hazardId.equals(typeId)) {
-                Double v = source.association().accept(type, visitor.withSource(source));
+        }
+
+        // Deferred evaluations only compute part of a contribution so they can't use the cache
+        ExposureCache cache = visitor.deferred == null ? ExposureCache.get(visitor.player, plan) : null;
+
+        Map<ResourceLocation, Double> values = new LinkedHashMap<>();
+        // Always compute the current exposure value here. Any tick-based throttling is handled by callers.
+        for (Map.Entry<ResourceLocation, HazardType> entry : types.entrySet()) {
+            ResourceLocation typeId = entry.getKey();
+            double value = 0.0;
+            List<CompiledHazardPlan.CompiledSource> fieldSources = null;
+            boolean propagated = false;
+            for (CompiledHazardPlan.CompiledSource source : plan.getSources(typeId, dimension)) {
+                if (propagation != null && HazardPropagation.isPropagated(source)) {
+                    propagated = true;
+                    continue;
+                }
+                if (field != null && HazardField.isFieldSource(source)) {
+                    if (fieldSources == null) {
+                        fieldSources = new ArrayList<>();
+                    }
+                    fieldSources.add(source);
+                    continue;
+                }
+                Double v = cache == null ? null : cache.get(source, visitor.player);
+                if (v == null) {
+                    v = source.association().accept(entry.getValue(), visitor.withSource(source));
+                    if (cache != null) {
+                        cache.put(source, visitor.player, v == null ? 0.0 : v);
+                    }
+                }
                 if (v != null) {
                     value += v;
                 }
             }
+            if (propagated) {
+                value += propagation.getExposure((ServerLevel) level, typeId, visitor.player);
+            }
+            if (fieldSources != null) {
+                Player player = visitor.player;
+                value += field.sample(level, typeId, entry.getValue(), fieldSources, player.getX(), player.getY(), player.getZ());
+            }
+            values.put(typeId, value);
+        }
+        return values;
+    }
+
+    /**
+     * Exposure to the given field sources (see HazardField) of a player standing at this position.
+     */
+    static double computeFieldSample(Level level, HazardType type, List<CompiledHazardPlan.CompiledSource> sources, double x, double y, double z) {
+        PlayerTickVisitor visitor = new PlayerTickVisitor(level, x, y, z);
+        for (CompiledHazardPlan.CompiledSource source : sources) {
+            visitor.include(source);
+        }
+        double value = 0.0;
+        for (CompiledHazardPlan.CompiledSource source : sources) {
+            Double v = source.association().accept(type, visitor.withSource(source));
+            if (v != null) {
+                value += v;
+            }
         }
-        lastCachedValue.put(Pair.of(level.dimension(), typeId), value);
         return value;
     }
 
+    // Add the keys of all sections visited by a voxel walk from start to end
+    private static void collectSections(double sx, double sy, double sz, double ex, double ey, double ez, LongOpenHashSet sections) {
+        int x = Mth.floor(sx);
+        int y = Mth.floor(sy);
+        int z = Mth.floor(sz);
+        int endX = Mth.floor(ex);
+        int endY = Mth.floor(ey);
+        int endZ = Mth.floor(ez);
+
+        double dx = ex - sx;
+        double dy = ey - sy;
+        double dz = ez - sz;
+        int stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+        int stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+        int stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
+        double tDeltaX = stepX == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dx);
+        double tDeltaY = stepY == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dy);
+        double tDeltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dz);
+        double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY : (stepX > 0 ? (x + 1.0 - sx) : (sx - x)) * tDeltaX;
+        double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY : (stepY > 0 ? (y + 1.0 - sy) : (sy - y)) * tDeltaY;
+        double tMaxZ = stepZ == 0 ? Double.POSITIVE_INFINITY : (stepZ > 0 ? (z + 1.0 - sz) : (sz - z)) * tDeltaZ;
+
+        long last = SectionPos.asLong(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(y), SectionPos.blockToSectionCoord(z));
+        sections.add(last);
+        int maxSteps = 1 + Math.abs(endX - x) + Math.abs(endY - y) + Math.abs(endZ - z);
+        for (int i = 0; i <= maxSteps && (x != endX || y != endY || z != endZ); i++) {
+            if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
+                x += stepX;
+                tMaxX += tDeltaX;
+            } else if (tMaxY <= tMaxZ) {
+                y += stepY;
+                tMaxY += tDeltaY;
+            } else {
+                z += stepZ;
+                tMaxZ += tDeltaZ;
+            }
+            long key = SectionPos.asLong(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(y), SectionPos.blockToSectionCoord(z));
+            if (key != last) {
+                sections.add(key);
+                last = key;
+            }
+        }
+    }
+
     public static double getLastCachedValue(ResourceLocation typeId, Level level) {
         return lastCachedValue.getOrDefault(Pair.of(level.dimension(), typeId), 0.0);
     }
@@ -81,26 +219,22 @@ public class HazardManager {
         }
 
         Level level = player.level();
-        Registry<HazardSource> sources = Tools.getRegistryAccess(level).registry(CustomRegistries.HAZARD_SOURCE_REGISTRY_KEY).orElse(null);
-        if (sources == null) {
+        if (Tools.getRegistryAccess(level).registry(CustomRegistries.HAZARD_SOURCE_REGISTRY_KEY).isEmpty()) {
+            return List.of();
+        }
+        CompiledHazardPlan plan = CompiledHazardPlan.get(level);
+        List<CompiledHazardPlan.CompiledSource> itemSources = plan.getItemSources();
+        double[] multipliers = new double[itemSources.size()];
+        if (!plan.getItemPredicates().accumulate(stack, multipliers)) {
             return List.of();
         }
         Map<ResourceLocation, Double> intensities = new LinkedHashMap<>();
-        for (HazardSource source : sources) {
-            ResourceLocation sourceId = sources.getKey(source);
-            if (sourceId == null || !Config.isHazardSourceEnabled(sourceId)) {
-                continue;
-            }
-            if (!(source.association() instanceof HazardSource.Association.Item association)) {
-                continue;
-            }
-            if (association.stacks().isEmpty()) {
-                continue;
-            }
-            double stackMultiplier = getMatchingStackMultiplier(stack, association.stacks());
+        for (int i = 0; i < itemSources.size(); i++) {
+            double stackMultiplier = multipliers[i];
             if (stackMultiplier <= 0.0) {
                 continue;
             }
+            HazardSource source = itemSources.get(i).source();
 
             double intensity = getBaseIntensity(source.transmission()) * stackMultiplier;
             if (intensity <= 0.0) {
@@ -125,46 +259,98 @@ public class HazardManager {
         return 0.0;
     }
 
-    private static AbsorptionModel getAbsorptionModel(HazardType.Blocking.Absorption absorption) {
-        return ABSORPTION_MODELS.computeIfAbsent(absorption, AbsorptionModel::new);
-    }
-
-    private static double clampAbsorption(double value) {
-        return Mth.clamp(value, 0.0, 1.0);
-    }
-
-    private static boolean isChunkLoaded(Level level, BlockPos pos) {
-        if (level instanceof ServerLevel serverLevel) {
-            ServerChunkCache chunkSource = serverLevel.getChunkSource();
-            int x = SectionPos.blockToSectionCoord(pos.getX());
-            int z = SectionPos.blockToSectionCoord(pos.getZ());
-
-            if (chunkSource.mainThread != Thread.currentThread()) return chunkSource.hasChunk(x, z);
-            return chunkSource.getChunkFutureMainThread(x, z, ChunkStatus.FULL, false).isDone();
-        }
-        return level.isLoaded(pos);
-    }
-
     private static class PlayerTickVisitor implements HazardSource.Association.Visitor<Double> {
-        private final Player player;
+        // Null for samples of the hazard field, these only evaluate field sources (see HazardField.isFieldSource)
+        @Nullable private final Player player;
+        private final Level level;
+        private final BlockPos center;
         private final double targetX;
         private final double targetZ;
         private final double targetBodyY;
         private final double targetHeadY;
+        private final ChunkCursor cursor;
+        private LineOfSight lineOfSight = null;
+        // When set, point source blocking is not traced but recorded here (see prepareHazardValues)
+        @Nullable private List<DeferredRay> deferred = null;
+        private CompiledHazardPlan.CompiledSource compiled;
         private HazardSource.Falloff falloff;
         private HazardSource.Transmission transmission;
+        // Absorption model of the blocking that was used last, so it is not looked up for every ray
+        @Nullable private HazardType.Blocking.Absorption modelAbsorption = null;
+        @Nullable private AbsorptionModel absorptionModel = null;
+        @Nullable private OcclusionCache occlusion = null;
+
+        // Shared between all sources (and hazard types) evaluated with this visitor
+        private int blockRadius = 0;
+        private LongArrayList blockCandidates = null;
+        private BlockState[] blockCandidateStates = null;
+        private SkySnapshot sky = null;
+        private final Map<AbsorptionModel, double[]> skyFactors = new IdentityHashMap<>();
 
         public PlayerTickVisitor(Player player) {
             this.player = player;
+            this.level = player.level();
+            this.center = player.blockPosition();
             this.targetX = player.getX();
             this.targetZ = player.getZ();
-            this.targetBodyY = player.getY() + 0.6;
+            this.targetBodyY = player.getY() + BODY_OFFSET;
             this.targetHeadY = player.getEyeY();
+            this.cursor = new ChunkCursor(level);
         }
 
-        public PlayerTickVisitor withSource(HazardSource source) {
-            this.falloff = source.falloff();
-            this.transmission = source.transmission();
+        // As seen by a player standing at the given position
+        private PlayerTickVisitor(Level level, double x, double y, double z) {
+            this.player = null;
+            this.level = level;
+            this.center = BlockPos.containing(x, y, z);
+            this.targetX = x;
+            this.targetZ = z;
+            this.targetBodyY = y + BODY_OFFSET;
+            this.targetHeadY = y + EYE_HEIGHT;
+            this.cursor = new ChunkCursor(level);
+        }
+
+        /**
+         * Register a source that will be evaluated with this visitor so that shared queries cover its range.
+         */
+        public void include(CompiledHazardPlan.CompiledSource source) {
+            if (source.association() instanceof HazardSource.Association.Block) {
+                blockRadius = Math.max(blockRadius, source.effectiveRadius());
+            }
+        }
+
+        private LongArrayList getBlockCandidates(ServerLevel level, BlockPos center) {
+            if (blockCandidates == null) {
+                blockCandidates = new LongArrayList();
+                HazardBlockIndex.collect(level,
+                        center.getX() - blockRadius, center.getY() - blockRadius, center.getZ() - blockRadius,
+                        center.getX() + blockRadius, center.getY() + blockRadius, center.getZ() + blockRadius,
+                        blockCandidates);
+                blockCandidateStates = new BlockState[blockCandidates.size()];
+            }
+            return blockCandidates;
+        }
+
+        private BlockState getBlockCandidateState(Level level, int index, BlockPos pos) {
+            BlockState state = blockCandidateStates[index];
+            if (state == null) {
+                state = level.getBlockState(pos);
+                blockCandidateStates[index] = state;
+            }
+            return state;
+        }
+
+        private SkySnapshot getSky() {
+            if (sky == null) {
+                sky = new SkySnapshot(level.canSeeSky(center), level.isNight(), level.isThundering(), level.isRaining());
+            }
+            return sky;
+        }
+
+        public PlayerTickVisitor withSource(CompiledHazardPlan.CompiledSource source) {
+            this.compiled = source;
+            this.falloff = source.source().falloff();
+            this.transmission = source.source().transmission();
             return this;
         }
 
@@ -176,117 +362,68 @@ public class HazardManager {
         }
 
         private double computePointRaw(HazardSource.Transmission.Point t, double d) {
-            double atten = t.airAttenuationPerBlock() > 0 ? Math.exp(-t.airAttenuationPerBlock() * d) : 1.0;
-            double withFalloff = applyFalloff(t.baseIntensity(), d, t.maxDistance(), falloff);
-            double raw = Math.max(0.0, withFalloff * atten);
+            double raw = FalloffTable.compute(t, falloff, d);
             if (raw <= MIN_EFFECTIVE_RADIATION) {
                 return 0.0;
             }
             return raw;
         }
 
-        private boolean hasLineOfSight(Level level, double sx, double sy, double sz, double ex, double ey, double ez, @Nullable BlockPos ignoredSourceBlock) {
-            Vec3 start = new Vec3(sx, sy, sz);
-            Vec3 end = new Vec3(ex, ey, ez);
-            if (ignoredSourceBlock != null
-                    && Mth.floor(sx) == ignoredSourceBlock.getX()
-                    && Mth.floor(sy) == ignoredSourceBlock.getY()
-                    && Mth.floor(sz) == ignoredSourceBlock.getZ()) {
-                start = movePastSourceBlock(start, end, ignoredSourceBlock);
-            }
-            if (!areTraceChunksLoaded(level, start.x, start.y, start.z, end.x, end.y, end.z)) {
-                return false;
+        // Same as computePointRaw but for a squared distance, uses the falloff table of the source if it has one
+        private double computePointRawSq(HazardSource.Transmission.Point t, double distSq) {
+            FalloffTable table = compiled.falloffTable();
+            double raw = table != null ? table.get(distSq) : FalloffTable.compute(t, falloff, Math.sqrt(distSq));
+            if (raw <= MIN_EFFECTIVE_RADIATION) {
+                return 0.0;
             }
-            return level.clip(new ClipContext(start, end, ClipContext.Block.COLLIDER, ClipContext.Fluid.NONE, player)).getType() == HitResult.Type.MISS;
+            return raw;
         }
 
-        private boolean areTraceChunksLoaded(Level level, double sx, double sy, double sz, double ex, double ey, double ez) {
-            int x = Mth.floor(sx);
-            int y = Mth.floor(sy);
-            int z = Mth.floor(sz);
-            int endX = Mth.floor(ex);
-            int endY = Mth.floor(ey);
-            int endZ = Mth.floor(ez);
-
-            BlockPos.MutableBlockPos mutable = new BlockPos.MutableBlockPos();
-            mutable.set(x, y, z);
-            if (!isChunkLoaded(level, mutable)) {
-                return false;
-            }
-            if (x == endX && y == endY && z == endZ) {
-                return true;
+        // Contribution of 'count' positions of a point source at the given position, 0 if it is too small to matter
+        private double evaluatePointPosition(HazardType type, HazardSource.Transmission.Point t, double x, double y, double z, int count,
+                                             @Nullable BlockPos ignoredSourceBlock) {
+            double dx = targetX - x;
+            double dy = targetBodyY - y;
+            double dz = targetZ - z;
+            double raw = computePointRawSq(t, dx * dx + dy * dy + dz * dz) * count;
+            if (raw <= 0.0) {
+                return 0.0;
             }
-
-            double dx = ex - sx;
-            double dy = ey - sy;
-            double dz = ez - sz;
-
-            int stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
-            int stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
-            int stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
-
-            double tDeltaX = stepX == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dx);
-            double tDeltaY = stepY == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dy);
-            double tDeltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dz);
-
-            double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY
-                    : (stepX > 0 ? (x + 1.0 - sx) : (sx - x)) * tDeltaX;
-            double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY
-                    : (stepY > 0 ? (y + 1.0 - sy) : (sy - y)) * tDeltaY;
-            double tMaxZ = stepZ == 0 ? Double.POSITIVE_INFINITY
-                    : (stepZ > 0 ? (z + 1.0 - sz) : (sz - z)) * tDeltaZ;
-
-            int maxSteps = 1 + Math.abs(endX - x) + Math.abs(endY - y) + Math.abs(endZ - z);
-            for (int i = 0; i <= maxSteps; i++) {
-                if (x == endX && y == endY && z == endZ) {
-                    return true;
-                }
-                if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
-                    x += stepX;
-                    tMaxX += tDeltaX;
-                } else if (tMaxY <= tMaxZ) {
-                    y += stepY;
-                    tMaxY += tDeltaY;
-                } else {
-                    z += stepZ;
-                    tMaxZ += tDeltaZ;
-                }
-                mutable.set(x, y, z);
-                if (!isChunkLoaded(level, mutable)) {
-                    return false;
+            double contributed = applyPointBlocking(type, level, t, x, y, z, raw, ignoredSourceBlock);
+            return contributed > MIN_EFFECTIVE_RADIATION ? contributed : 0.0;
+        }
+
+        // Barnes-Hut: groups of positions that are far away compared to their size are evaluated as one source with
+        // a single ray from their center. The voxel of that center doesn't block. Groups and positions in unloaded
+        // chunks are skipped. For block sources single positions are checked against the live block (the tree can lag
+        // behind changes without neighbor updates like the index), groups are not
+        private double evaluateClustered(HazardType type, HazardSource.Transmission.Point t, SourceOctree octree, double openingAngle,
+                                         boolean blockSource) {
+            double[] sum = {0.0};
+            octree.visit(targetX, targetBodyY, targetZ, openingAngle, compiled.effectiveRadius(), (x, y, z, count, pos) -> {
+                if (!cursor.isLoaded(Mth.floor(x), Mth.floor(z))) {
+                    return;
+                }
+                BlockPos ignored = null;
+                if (count > 1) {
+                    ignored = BlockPos.containing(x, y, z);
+                } else if (blockSource) {
+                    BlockState state = cursor.getBlockState(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos));
+                    if (state == null || !compiled.matches(state)) {
+                        return;
+                    }
+                    ignored = BlockPos.of(pos);
                 }
-            }
-
-            return true;
+                sum[0] += evaluatePointPosition(type, t, x, y, z, count, ignored);
+            });
+            return sum[0];
         }
 
-        private Vec3 movePastSourceBlock(Vec3 start, Vec3 end, BlockPos sourceBlock) {
-            double dx = end.x - start.x;
-            double dy = end.y - start.y;
-            double dz = end.z - start.z;
-            if (dx == 0.0 && dy == 0.0 && dz == 0.0) {
-                return start;
-            }
-
-            double exitT = 1.0;
-            if (dx > 0.0) {
-                exitT = Math.min(exitT, (sourceBlock.getX() + 1.0 - start.x) / dx);
-            } else if (dx < 0.0) {
-                exitT = Math.min(exitT, (sourceBlock.getX() - start.x) / dx);
+        private boolean hasLineOfSight(double sx, double sy, double sz, double ex, double ey, double ez, @Nullable BlockPos ignoredSourceBlock) {
+            if (lineOfSight == null) {
+                lineOfSight = new LineOfSight(cursor, level, player == null ? CollisionContext.empty() : CollisionContext.of(player));
             }
-            if (dy > 0.0) {
-                exitT = Math.min(exitT, (sourceBlock.getY() + 1.0 - start.y) / dy);
-            } else if (dy < 0.0) {
-                exitT = Math.min(exitT, (sourceBlock.getY() - start.y) / dy);
-            }
-            if (dz > 0.0) {
-                exitT = Math.min(exitT, (sourceBlock.getZ() + 1.0 - start.z) / dz);
-            } else if (dz < 0.0) {
-                exitT = Math.min(exitT, (sourceBlock.getZ() - start.z) / dz);
-            }
-
-            double t = Mth.clamp(exitT + 1.0e-7, 0.0, 1.0);
-            return new Vec3(start.x + dx * t, start.y + dy * t, start.z + dz * t);
+            return lineOfSight.isClear(sx, sy, sz, ex, ey, ez, ignoredSourceBlock);
         }
 
         private double applyPointBlocking(HazardType type, Level level, HazardSource.Transmission.Point transmission, double sourceX, double sourceY, double sourceZ, double rawIntensity) {
@@ -298,17 +435,29 @@ public class HazardManager {
                 return 0.0;
             }
             if (!(type.blocking() instanceof HazardType.Blocking.Absorption absorption)) {
-                boolean bodyVisible = !transmission.requiresLineOfSight() || hasLineOfSight(level, sourceX, sourceY, sourceZ, targetX, targetBodyY, targetZ, ignoredSourceBlock);
-                boolean headVisible = !transmission.requiresLineOfSight() || hasLineOfSight(level, sourceX, sourceY, sourceZ, targetX, targetHeadY, targetZ, ignoredSourceBlock);
-                if (!bodyVisible && !headVisible) {
+                if (!transmission.requiresLineOfSight()) {
+                    return rawIntensity;
+                }
+                if (deferred != null) {
+                    deferred.add(new DeferredRay(compiled.source().hazardType(), null, sourceX, sourceY, sourceZ, rawIntensity, ignoredSourceBlock));
                     return 0.0;
                 }
-                return rawIntensity;
+                // Visible if either the body or the head can be seen. The head is only traced when the body is blocked
+                if (hasLineOfSight(sourceX, sourceY, sourceZ, targetX, targetBodyY, targetZ, ignoredSourceBlock)
+                        || hasLineOfSight(sourceX, sourceY, sourceZ, targetX, targetHeadY, targetZ, ignoredSourceBlock)) {
+                    return rawIntensity;
+                }
+                return 0.0;
             }
             AbsorptionModel model = getAbsorptionModel(absorption);
+            if (deferred != null) {
+                deferred.add(new DeferredRay(compiled.source().hazardType(), model, sourceX, sourceY, sourceZ, rawIntensity, ignoredSourceBlock));
+                return 0.0;
+            }
             double cutoffFactor = MIN_EFFECTIVE_RADIATION / rawIntensity;
-            double bodyFactor = model.lineFactor(level, sourceX, sourceY, sourceZ, targetX, targetBodyY, targetZ, cutoffFactor);
-            double headFactor = model.lineFactor(level, sourceX, sourceY, sourceZ, targetX, targetHeadY, targetZ, cutoffFactor);
+            OcclusionCache occlusion = getOcclusion();
+            double bodyFactor = occlusion.lineFactor(cursor, model, sourceX, sourceY, sourceZ, targetX, targetBodyY, targetZ, cutoffFactor);
+            double headFactor = occlusion.lineFactor(cursor, model, sourceX, sourceY, sourceZ, targetX, targetHeadY, targetZ, cutoffFactor);
             double bestFactor = Math.max(bodyFactor, headFactor);
             if (bestFactor <= 0.0) {
                 return 0.0;
@@ -316,6 +465,22 @@ public class HazardManager {
             return rawIntensity * bestFactor;
         }
 
+        private AbsorptionModel getAbsorptionModel(HazardType.Blocking.Absorption absorption) {
+            // Sources of the same hazard type share the blocking instance, so this only resolves once per type
+            if (absorptionModel == null || modelAbsorption != absorption) {
+                absorptionModel = CompiledHazardPlan.get(level).getAbsorptionModel(absorption);
+                modelAbsorption = absorption;
+            }
+            return absorptionModel;
+        }
+
+        private OcclusionCache getOcclusion() {
+            if (occlusion == null) {
+                occlusion = OcclusionCache.get(level);
+            }
+            return occlusion;
+        }
+
         private double applySkyBlocking(HazardType type, Level level, double intensity) {
             if (intensity <= MIN_EFFECTIVE_RADIATION) {
                 return 0.0;
@@ -330,31 +495,29 @@ public class HazardManager {
             if (startY <= Mth.floor(targetHeadY)) {
                 return intensity;
             }
+            // The column factors don't depend on the intensity so they are shared by all sky sources using this model
+            double[] factors = skyFactors.computeIfAbsent(model, m -> new double[]{
+                    getOcclusion().skyFactor(cursor, m, x, z, Mth.floor(targetBodyY), 0.0),
+                    getOcclusion().skyFactor(cursor, m, x, z, Mth.floor(targetHeadY), 0.0)
+            });
             double cutoffFactor = MIN_EFFECTIVE_RADIATION / intensity;
-            double bodyFactor = model.verticalFactor(level, x, z, startY, Mth.floor(targetBodyY), cutoffFactor);
-            if (bodyFactor <= 0.0) {
-                double headFactor = model.verticalFactor(level, x, z, startY, Mth.floor(targetHeadY), cutoffFactor);
-                if (headFactor <= 0.0) {
-                    return 0.0;
-                }
-                return intensity * headFactor;
-            }
-            double headFactor = model.verticalFactor(level, x, z, startY, Mth.floor(targetHeadY), cutoffFactor);
+            double bodyFactor = factors[0] <= cutoffFactor ? 0.0 : factors[0];
+            double headFactor = factors[1] <= cutoffFactor ? 0.0 : factors[1];
             return intensity * Math.max(bodyFactor, headFactor);
         }
 
-        private double computeSkyIntensity(HazardType type, HazardSource.Transmission.Sky t, Level level, BlockPos playerPos) {
-            boolean canSeeSky = level.canSeeSky(playerPos);
+        private double computeSkyIntensity(HazardType type, HazardSource.Transmission.Sky t, Level level) {
+            SkySnapshot sky = getSky();
             double intensity = t.baseIntensity();
-            if (level.isNight()) {
+            if (sky.night()) {
                 intensity *= t.nightMultiplier();
             }
-            if (level.isThundering()) {
+            if (sky.thundering()) {
                 intensity *= t.thunderMultiplier();
-            } else if (level.isRaining()) {
+            } else if (sky.raining()) {
                 intensity *= t.rainMultiplier();
             }
-            if (t.requiresDirectSky() && !canSeeSky) {
+            if (t.requiresDirectSky() && !sky.canSeeSky()) {
                 intensity *= t.indoorLeak();
             }
             intensity = Math.max(0.0, intensity);
@@ -363,7 +526,6 @@ public class HazardManager {
 
         @Override
         public Double level(HazardType type, HazardSource.Association.Level a) {
-            Level level = player.level();
             ResourceLocation currentLevel = level.dimension().location();
             if (!currentLevel.equals(a.level())) {
                 return 0.0;
@@ -371,36 +533,37 @@ public class HazardManager {
             return transmission.accept(type, new HazardSource.Transmission.Visitor<>() {
                 @Override
                 public Double sky(HazardType type, HazardSource.Transmission.Sky t) {
-                    return computeSkyIntensity(type, t, level, player.blockPosition());
+                    return computeSkyIntensity(type, t, level);
                 }
             });
         }
 
         @Override
         public Double entityType(HazardType type, HazardSource.Association.EntityType a) {
-            if (a.entityTypes().isEmpty()) {
+            if (a.entityTypes().isEmpty() || !(level instanceof ServerLevel serverLevel)) {
                 return 0.0;
             }
-            Level level = player.level();
+            HazardEntityIndex index = HazardEntityIndex.get(serverLevel);
+            int sourceIndex = index.getSourceIndex(compiled);
             return transmission.accept(type, new HazardSource.Transmission.Visitor<>() {
                 @Override
                 public Double point(HazardType type, HazardSource.Transmission.Point t) {
-                    double maxDistance = t.maxDistance();
+                    double maxDistance = compiled.effectiveRadius();
                     if (maxDistance <= 0) {
                         return 0.0;
                     }
-                    Map<Entity, Double> entities = getMatchingEntitySources(level, a, player.getBoundingBox().inflate(maxDistance));
+                    List<HazardEntityIndex.IndexedEntity> entities = getMatchingEntitySources(index, sourceIndex, player.getBoundingBox().inflate(maxDistance));
                     if (entities.isEmpty()) {
                         return 0.0;
                     }
                     double sum = 0.0;
-                    for (Map.Entry<Entity, Double> entry : entities.entrySet()) {
-                        Entity entity = entry.getKey();
+                    for (HazardEntityIndex.IndexedEntity indexed : entities) {
+                        Entity entity = indexed.entity();
                         double d = player.distanceTo(entity);
                         if (d > maxDistance) {
                             continue;
                         }
-                        double raw = computePointRaw(t, d) * entry.getValue();
+                        double raw = computePointRaw(t, d) * indexed.multipliers()[sourceIndex];
                         if (raw <= 0.0) {
                             continue;
                         }
@@ -414,49 +577,29 @@ public class HazardManager {
 
                 @Override
                 public Double contact(HazardType type, HazardSource.Transmission.Contact t) {
-                    Map<Entity, Double> entities = getMatchingEntitySources(level, a, player.getBoundingBox());
+                    List<HazardEntityIndex.IndexedEntity> entities = getMatchingEntitySources(index, sourceIndex, player.getBoundingBox());
                     if (entities.isEmpty()) {
                         return 0.0;
                     }
                     double sum = 0.0;
-                    for (Map.Entry<Entity, Double> entry : entities.entrySet()) {
-                        Entity entity = entry.getKey();
-                        if (player.getBoundingBox().intersects(entity.getBoundingBox())) {
-                            sum += t.baseIntensity() * entry.getValue();
-                        }
+                    for (HazardEntityIndex.IndexedEntity indexed : entities) {
+                        sum += t.baseIntensity() * indexed.multipliers()[sourceIndex];
                     }
                     return Math.max(0.0, sum);
                 }
             });
         }
 
-        private double getEntityAssociationStackMultiplier(Entity entity, HazardSource.Association.EntityType association) {
-            if (!(entity instanceof ItemEntity itemEntity) || association.stacks().isEmpty()) {
-                return 1.0;
-            }
-            return getMatchingStackMultiplier(itemEntity.getItem(), association.stacks());
-        }
-
-        private Map<Entity, Double> getMatchingEntitySources(Level level, HazardSource.Association.EntityType association, AABB bounds) {
-            Map<Entity, Double> entities = new HashMap<>();
-            for (ResourceLocation id : association.entityTypes()) {
-                var entityType = ForgeRegistries.ENTITY_TYPES.getValue(id);
-                if (entityType == null) {
-                    continue;
-                }
-                for (Entity entity : level.getEntities(entityType, bounds, entity -> entity != player)) {
-                    double stackMultiplier = getEntityAssociationStackMultiplier(entity, association);
-                    if (stackMultiplier > 0.0) {
-                        entities.put(entity, stackMultiplier);
-                    }
-                }
-            }
+        private List<HazardEntityIndex.IndexedEntity> getMatchingEntitySources(HazardEntityIndex index, int sourceIndex, AABB bounds) {
+            List<HazardEntityIndex.IndexedEntity> entities = new ArrayList<>();
+            index.collect(sourceIndex, bounds, entities);
+            // The player is never a source for itself
+            entities.removeIf(indexed -> indexed.entity() == player);
             return entities;
         }
 
         @Override
         public Double locations(HazardType type, HazardSource.Association.Locations a) {
-            Level level = player.level();
             ResourceLocation currentLevel = level.dimension().location();
             if (!currentLevel.equals(a.level())) {
                 return 0.0;
@@ -464,26 +607,16 @@ public class HazardManager {
             return transmission.accept(type, new HazardSource.Transmission.Visitor<>() {
                 @Override
                 public Double point(HazardType type, HazardSource.Transmission.Point t) {
+                    double openingAngle = Config.CLUSTER_OPENING_ANGLE.get();
+                    if (openingAngle > 0.0 && compiled.octree() != null) {
+                        return evaluateClustered(type, t, compiled.octree(), openingAngle, false);
+                    }
                     double sum = 0.0;
                     for (BlockPos p : a.positions()) {
-                        if (!isChunkLoaded(level, p)) {
+                        if (!cursor.isLoaded(p.getX(), p.getZ())) {
                             continue;
                         }
-                        double x = p.getX() + 0.5;
-                        double y = p.getY() + 0.5;
-                        double z = p.getZ() + 0.5;
-                        double dx = targetX - x;
-                        double dy = targetBodyY - y;
-                        double dz = targetZ - z;
-                        double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
-                        double raw = computePointRaw(t, d);
-                        if (raw <= 0.0) {
-                            continue;
-                        }
-                        double contributed = applyPointBlocking(type, level, t, x, y, z, raw);
-                        if (contributed > MIN_EFFECTIVE_RADIATION) {
-                            sum += contributed;
-                        }
+                        sum += evaluatePointPosition(type, t, p.getX() + 0.5, p.getY() + 0.5, p.getZ() + 0.5, 1, null);
                     }
                     return sum;
                 }
@@ -497,42 +630,28 @@ public class HazardManager {
 
         @Override
         public Double item(HazardType type, HazardSource.Association.Item a) {
-            if (a.stacks().isEmpty()) {
+            if (a.stacks().isEmpty() || !(level instanceof ServerLevel serverLevel)) {
                 return 0.0;
             }
-            Level level = player.level();
+            CarriedEmissionIndex index = CarriedEmissionIndex.get(serverLevel);
+            int sourceIndex = index.getSourceIndex(compiled);
             return transmission.accept(type, new HazardSource.Transmission.Visitor<>() {
                 @Override
                 public Double point(HazardType type, HazardSource.Transmission.Point t) {
-                    double maxDistance = t.maxDistance();
+                    double maxDistance = compiled.effectiveRadius();
                     if (maxDistance <= 0) {
                         return 0.0;
                     }
-                    AABB bounds = player.getBoundingBox().inflate(maxDistance);
-                    Map<Player, Double> sourcePlayers = new HashMap<>();
-                    for (Player candidate : level.players()) {
-                        if (candidate.isRemoved()) {
-                            continue;
-                        }
-                        if (!candidate.getBoundingBox().intersects(bounds)) {
-                            continue;
-                        }
-                        if (player.distanceTo(candidate) > maxDistance) {
-                            continue;
-                        }
-                        double stackMultiplier = getItemAssociationStackMultiplier(candidate, a);
-                        if (stackMultiplier > 0.0) {
-                            sourcePlayers.put(candidate, stackMultiplier);
-                        }
-                    }
-                    if (sourcePlayers.isEmpty()) {
-                        return 0.0;
-                    }
+                    List<CarriedEmissionIndex.Carrier> carriers = new ArrayList<>();
+                    index.collect(sourceIndex, player.getBoundingBox().inflate(maxDistance), carriers);
                     double sum = 0.0;
-                    for (Map.Entry<Player, Double> entry : sourcePlayers.entrySet()) {
-                        Player sourcePlayer = entry.getKey();
+                    for (CarriedEmissionIndex.Carrier carrier : carriers) {
+                        Player sourcePlayer = carrier.player();
                         double d = player.distanceTo(sourcePlayer);
-                        double raw = computePointRaw(t, d) * entry.getValue();
+                        if (d > maxDistance) {
+                            continue;
+                        }
+                        double raw = computePointRaw(t, d) * carrier.multipliers()[sourceIndex];
                         if (raw <= 0.0) {
                             continue;
                         }
@@ -546,75 +665,41 @@ public class HazardManager {
 
                 @Override
                 public Double contact(HazardType type, HazardSource.Transmission.Contact t) {
-                    AABB bounds = player.getBoundingBox();
-                    Map<Player, Double> sourcePlayers = new HashMap<>();
-                    for (Player candidate : level.players()) {
-                        if (candidate.isRemoved()) {
-                            continue;
-                        }
-                        if (!candidate.getBoundingBox().intersects(bounds)) {
-                            continue;
-                        }
-                        double stackMultiplier = getItemAssociationStackMultiplier(candidate, a);
-                        if (stackMultiplier > 0.0) {
-                            sourcePlayers.put(candidate, stackMultiplier);
-                        }
-                    }
-                    if (sourcePlayers.isEmpty()) {
-                        return 0.0;
-                    }
+                    List<CarriedEmissionIndex.Carrier> carriers = new ArrayList<>();
+                    index.collect(sourceIndex, player.getBoundingBox(), carriers);
                     double sum = 0.0;
-                    for (Map.Entry<Player, Double> entry : sourcePlayers.entrySet()) {
-                        Player sourcePlayer = entry.getKey();
-                        if (player.getBoundingBox().intersects(sourcePlayer.getBoundingBox())) {
-                            sum += t.baseIntensity() * entry.getValue();
-                        }
+                    for (CarriedEmissionIndex.Carrier carrier : carriers) {
+                        sum += t.baseIntensity() * carrier.multipliers()[sourceIndex];
                     }
                     return Math.max(0.0, sum);
                 }
             });
         }
 
-        private double getItemAssociationStackMultiplier(Player candidate, HazardSource.Association.Item association) {
-            double multiplier = 0.0;
-            for (ItemStack stack : candidate.getInventory().items) {
-                multiplier += getMatchingStackMultiplier(stack, association.stacks());
-            }
-            for (ItemStack stack : candidate.getInventory().offhand) {
-                multiplier += getMatchingStackMultiplier(stack, association.stacks());
-            }
-            for (ItemStack stack : candidate.getInventory().armor) {
-                multiplier += getMatchingStackMultiplier(stack, association.stacks());
-            }
-            return multiplier;
-        }
-
         @Override
         public Double biome(HazardType type, HazardSource.Association.Biome a) {
-            Level level = player.level();
-            if (!a.biome().test(level.getBiome(player.blockPosition()))) {
+            if (!a.biome().test(level.getBiome(center))) {
                 return 0.0;
             }
             return transmission.accept(type, new HazardSource.Transmission.Visitor<>() {
                 @Override
                 public Double sky(HazardType type, HazardSource.Transmission.Sky t) {
-                    return computeSkyIntensity(type, t, level, player.blockPosition());
+                    return computeSkyIntensity(type, t, level);
                 }
             });
         }
 
         @Override
         public Double city(HazardType type, HazardSource.Association.City a) {
-            Level level = player.level();
             if (!LostCityCompat.hasLostCities()) {
                 return 0.0;
             }
-            BlockPos pos = player.blockPosition();
+            BlockPos pos = center;
             if (transmission instanceof HazardSource.Transmission.Point t) {
                 if (a.buildings().isEmpty() && a.multibuildings().isEmpty()) {
                     return 0.0;
                 }
-                int maxDistance = t.maxDistance();
+                int maxDistance = compiled.effectiveRadius();
                 if (maxDistance <= 0) {
                     return 0.0;
                 }
@@ -623,7 +708,7 @@ public class HazardManager {
                 BlockPos.MutableBlockPos sourcePos = new BlockPos.MutableBlockPos();
                 for (LostCityCompat.CitySource source : LostCityCompat.findCitySources(level, pos, a.style(), a.buildings(), a.multibuildings(), maxDistance)) {
                     sourcePos.set(Mth.floor(source.centerX()), Mth.floor(sourceY), Mth.floor(source.centerZ()));
-                    if (!isChunkLoaded(level, sourcePos)) {
+                    if (!cursor.isLoaded(sourcePos.getX(), sourcePos.getZ())) {
                         continue;
                     }
                     double dx = targetX - source.centerX();
@@ -653,7 +738,7 @@ public class HazardManager {
 
                 @Override
                 public Double sky(HazardType type, HazardSource.Transmission.Sky t) {
-                    double intensity = computeSkyIntensity(type, t, level, pos);
+                    double intensity = computeSkyIntensity(type, t, level);
                     if (!useBuildingCenter) {
                         if (!LostCityCompat.isCity(level, pos, a.style(), a.buildings(), a.multibuildings())) {
                             return 0.0;
@@ -681,67 +766,55 @@ public class HazardManager {
 
         @Override
         public Double block(HazardType type, HazardSource.Association.Block a) {
-            Level level = player.level();
-            BlockPos center = player.blockPosition();
-            boolean isTag = a.isTag();
-            TagKey<Block> tag = isTag ? TagKey.create(Registries.BLOCK, a.blockOrTag()) : null;
-            Block block = null;
-            if (!isTag) {
-                if (!BuiltInRegistries.BLOCK.containsKey(a.blockOrTag())) {
-                    return 0.0;
-                }
-                block = BuiltInRegistries.BLOCK.get(a.blockOrTag());
+            if (compiled.block() == null && compiled.blockTag() == null) {
+                return 0.0;
             }
-            Block finalBlock = block;
-            TagKey<Block> finalTag = tag;
+            CompiledHazardPlan.CompiledSource source = compiled;
 
             return transmission.accept(type, new HazardSource.Transmission.Visitor<>() {
                 private boolean matches(BlockState state) {
-                    return isTag ? state.is(finalTag) : state.is(finalBlock);
+                    return source.matches(state);
                 }
 
                 @Override
                 public Double point(HazardType type, HazardSource.Transmission.Point t) {
-                    double maxDistance = t.maxDistance();
-                    if (maxDistance <= 0) {
+                    double maxDistance = source.effectiveRadius();
+                    if (maxDistance <= 0 || !(level instanceof ServerLevel serverLevel)) {
                         return 0.0;
                     }
-                    int radius = (int) Math.ceil(maxDistance);
+                    double openingAngle = Config.CLUSTER_OPENING_ANGLE.get();
+                    if (openingAngle > 0.0) {
+                        // Trees are kept per chunk and source in the block index, only the visit is done per player
+                        double sum = 0.0;
+                        int radius = source.effectiveRadius();
+                        for (int cx = SectionPos.blockToSectionCoord(center.getX() - radius); cx <= SectionPos.blockToSectionCoord(center.getX() + radius); cx++) {
+                            for (int cz = SectionPos.blockToSectionCoord(center.getZ() - radius); cz <= SectionPos.blockToSectionCoord(center.getZ() + radius); cz++) {
+                                SourceOctree octree = HazardBlockIndex.getOctree(serverLevel, cx, cz, source);
+                                if (octree != null) {
+                                    sum += evaluateClustered(type, t, octree, openingAngle, true);
+                                }
+                            }
+                        }
+                        return sum;
+                    }
                     double maxDistanceSq = maxDistance * maxDistance;
+                    LongArrayList candidates = getBlockCandidates(serverLevel, center);
                     double sum = 0.0;
                     BlockPos.MutableBlockPos mutable = new BlockPos.MutableBlockPos();
-                    for (int dx = -radius; dx <= radius; dx++) {
-                        for (int dy = -radius; dy <= radius; dy++) {
-                            for (int dz = -radius; dz <= radius; dz++) {
-                                double distSq = dx * dx + dy * dy + dz * dz;
-                                if (distSq > maxDistanceSq) {
-                                    continue;
-                                }
-                                mutable.set(center.getX() + dx, center.getY() + dy, center.getZ() + dz);
-                                if (!isChunkLoaded(level, mutable)) {
-                                    continue;
-                                }
-                                BlockState state = level.getBlockState(mutable);
-                                if (!matches(state)) {
-                                    continue;
-                                }
-                                double x = mutable.getX() + 0.5;
-                                double y = mutable.getY() + 0.5;
-                                double z = mutable.getZ() + 0.5;
-                                double ddx = targetX - x;
-                                double ddy = targetBodyY - y;
-                                double ddz = targetZ - z;
-                                double d = Math.sqrt(ddx * ddx + ddy * ddy + ddz * ddz);
-                                double raw = computePointRaw(t, d);
-                                if (raw <= 0.0) {
-                                    continue;
-                                }
-                                double contributed = applyPointBlocking(type, level, t, x, y, z, raw, mutable.immutable());
-                                if (contributed > MIN_EFFECTIVE_RADIATION) {
-                                    sum += contributed;
-                                }
-                            }
+                    for (int i = 0; i < candidates.size(); i++) {
+                        mutable.set(candidates.getLong(i));
+                        int dx = mutable.getX() - center.getX();
+                        int dy = mutable.getY() - center.getY();
+                        int dz = mutable.getZ() - center.getZ();
+                        double distSq = dx * dx + dy * dy + dz * dz;
+                        if (distSq > maxDistanceSq) {
+                            continue;
                         }
+                        BlockState state = getBlockCandidateState(level, i, mutable);
+                        if (!matches(state)) {
+                            continue;
+                        }
+                        sum += evaluatePointPosition(type, t, mutable.getX() + 0.5, mutable.getY() + 0.5, mutable.getZ() + 0.5, 1, mutable.immutable());
                     }
                     return sum;
                 }
@@ -755,12 +828,26 @@ public class HazardManager {
                     int maxX = (int) Math.floor(bounds.maxX);
                     int maxY = (int) Math.floor(bounds.maxY);
                     int maxZ = (int) Math.floor(bounds.maxZ);
-                    for (BlockPos pos : BlockPos.betweenClosed(minX, minY, minZ, maxX, maxY, maxZ)) {
-                        if (!isChunkLoaded(level, pos)) {
-                            continue;
-                        }
-                        if (matches(level.getBlockState(pos))) {
-                            return Math.max(0.0, t.baseIntensity());
+                    for (int sx = SectionPos.blockToSectionCoord(minX); sx <= SectionPos.blockToSectionCoord(maxX); sx++) {
+                        for (int sz = SectionPos.blockToSectionCoord(minZ); sz <= SectionPos.blockToSectionCoord(maxZ); sz++) {
+                            for (int sy = SectionPos.blockToSectionCoord(minY); sy <= SectionPos.blockToSectionCoord(maxY); sy++) {
+                                LevelChunkSection section = cursor.getSection(sx, sy, sz);
+                                if (section == null || section.hasOnlyAir() || !section.maybeHas(this::matches)) {
+                                    continue;
+                                }
+                                int x1 = Math.min(maxX, SectionPos.sectionToBlockCoord(sx, 15));
+                                int y1 = Math.min(maxY, SectionPos.sectionToBlockCoord(sy, 15));
+                                int z1 = Math.min(maxZ, SectionPos.sectionToBlockCoord(sz, 15));
+                                for (int x = Math.max(minX, SectionPos.sectionToBlockCoord(sx)); x <= x1; x++) {
+                                    for (int y = Math.max(minY, SectionPos.sectionToBlockCoord(sy)); y <= y1; y++) {
+                                        for (int z = Math.max(minZ, SectionPos.sectionToBlockCoord(sz)); z <= z1; z++) {
+                                            if (matches(section.getBlockState(x & 15, y & 15, z & 15))) {
+                                                return Math.max(0.0, t.baseIntensity());
+                                            }
+                                        }
+                                    }
+                                }
+                            }
                         }
                     }
                     return 0.0;
@@ -769,170 +856,65 @@ public class HazardManager {
         }
     }
 
-    private static double getMatchingStackMultiplier(ItemStack stack, List<HazardSource.Association.Item.ItemStackPredicate> predicates) {
-        double multiplier = 0.0;
-        for (HazardSource.Association.Item.ItemStackPredicate predicate : predicates) {
-            multiplier = Math.max(multiplier, getMatchingStackMultiplier(stack, predicate));
-        }
-        return multiplier;
+    private record SkySnapshot(boolean canSeeSky, boolean night, boolean thundering, boolean raining) {
     }
 
-    private static double getMatchingStackMultiplier(ItemStack stack, HazardSource.Association.Item.ItemStackPredicate predicate) {
-        if (!predicate.matches(stack)) {
-            return 0.0;
-        }
-        return (double) stack.getCount() / predicate.count();
+    // A point source contribution of which the blocking still has to be traced. Without a model only line of sight matters
+    private record DeferredRay(ResourceLocation typeId, @Nullable AbsorptionModel model, double x, double y, double z,
+                               double raw, @Nullable BlockPos ignoredSourceBlock) {
     }
 
-    private static class AbsorptionModel {
-        private final double defaultAbsorption;
-        private final Map<Block, Double> blockAbsorptions = new HashMap<>();
-        private final List<TagRule> tagRules = new ArrayList<>();
-        private final Int2DoubleOpenHashMap blockIdCache = new Int2DoubleOpenHashMap();
-
-        private AbsorptionModel(HazardType.Blocking.Absorption absorption) {
-            this.defaultAbsorption = clampAbsorption(absorption.defaultAbsorption());
-            for (HazardType.Blocking.Absorption.BlockEntry entry : absorption.blocks()) {
-                if (!BuiltInRegistries.BLOCK.containsKey(entry.block())) {
-                    continue;
-                }
-                Block block = BuiltInRegistries.BLOCK.get(entry.block());
-                blockAbsorptions.put(block, clampAbsorption(entry.absorption()));
-            }
-            for (HazardType.Blocking.Absorption.TagEntry entry : absorption.tags()) {
-                tagRules.add(new TagRule(TagKey.create(Registries.BLOCK, entry.tag()), clampAbsorption(entry.absorption())));
-            }
-            blockIdCache.defaultReturnValue(Double.NaN);
-        }
-
-        private double getAbsorption(BlockState state) {
-            if (state.isAir()) {
-                return 0.0;
-            }
-            Block block = state.getBlock();
-            int id = BuiltInRegistries.BLOCK.getId(block);
-            double cached = blockIdCache.get(id);
-            if (!Double.isNaN(cached)) {
-                return cached;
-            }
-
-            Double configured = blockAbsorptions.get(block);
-            double value = configured == null ? defaultAbsorption : configured;
-            if (configured == null && !tagRules.isEmpty()) {
-                for (TagRule rule : tagRules) {
-                    if (state.is(rule.tag())) {
-                        value = Math.max(value, rule.absorption());
-                        if (value >= 1.0) {
-                            value = 1.0;
-                            break;
-                        }
-                    }
-                }
-            }
-            value = clampAbsorption(value);
-            blockIdCache.put(id, value);
-            return value;
-        }
-
-        private double verticalFactor(Level level, int x, int z, int startY, int endY, double cutoffFactor) {
-            if (startY <= endY) {
-                return 1.0;
-            }
-            if (cutoffFactor >= 1.0) {
-                return 0.0;
-            }
-            BlockPos.MutableBlockPos mutable = new BlockPos.MutableBlockPos();
-            double factor = 1.0;
-            for (int y = startY; y > endY; y--) {
-                mutable.set(x, y, z);
-                if (!isChunkLoaded(level, mutable)) {
-                    return 0.0;
-                }
-                double absorption = getAbsorption(level.getBlockState(mutable));
-                if (absorption <= 0.0) {
-                    continue;
-                }
-                factor *= (1.0 - absorption);
-                if (factor <= cutoffFactor) {
-                    return 0.0;
-                }
-            }
-            return factor;
-        }
+    /**
+     * Main thread part of an asynchronous evaluation (see prepareHazardValues). Only holds copied data so
+     * complete() can be called from any thread.
+     */
+    public static class PreparedEvaluation {
+        private final Map<ResourceLocation, Double> baseValues;
+        private final List<DeferredRay> rays;
+        private final BlockSnapshot snapshot;
+        private final double targetX;
+        private final double targetBodyY;
+        private final double targetHeadY;
+        private final double targetZ;
 
-        private double lineFactor(Level level, double sx, double sy, double sz, double ex, double ey, double ez, double cutoffFactor) {
-            if (cutoffFactor >= 1.0) {
-                return 0.0;
-            }
-            int x = Mth.floor(sx);
-            int y = Mth.floor(sy);
-            int z = Mth.floor(sz);
-            int endX = Mth.floor(ex);
-            int endY = Mth.floor(ey);
-            int endZ = Mth.floor(ez);
-
-            if (x == endX && y == endY && z == endZ) {
-                return 1.0;
-            }
-
-            double dx = ex - sx;
-            double dy = ey - sy;
-            double dz = ez - sz;
-
-            int stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
-            int stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
-            int stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
-
-            double tDeltaX = stepX == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dx);
-            double tDeltaY = stepY == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dy);
-            double tDeltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dz);
-
-            double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY
-                    : (stepX > 0 ? (x + 1.0 - sx) : (sx - x)) * tDeltaX;
-            double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY
-                    : (stepY > 0 ? (y + 1.0 - sy) : (sy - y)) * tDeltaY;
-            double tMaxZ = stepZ == 0 ? Double.POSITIVE_INFINITY
-                    : (stepZ > 0 ? (z + 1.0 - sz) : (sz - z)) * tDeltaZ;
-
-            double factor = 1.0;
-            int maxSteps = 1 + Math.abs(endX - x) + Math.abs(endY - y) + Math.abs(endZ - z);
-            BlockPos.MutableBlockPos mutable = new BlockPos.MutableBlockPos();
-            boolean processCurrent = false;
-
-            for (int i = 0; i <= maxSteps; i++) {
-                if (processCurrent && !(x == endX && y == endY && z == endZ)) {
-                    mutable.set(x, y, z);
-                    if (!isChunkLoaded(level, mutable)) {
-                        return 0.0;
-                    }
-                    double absorption = getAbsorption(level.getBlockState(mutable));
-                    if (absorption > 0.0) {
-                        factor *= (1.0 - absorption);
-                        if (factor <= cutoffFactor) {
-                            return 0.0;
-                        }
+        private PreparedEvaluation(Map<ResourceLocation, Double> baseValues, List<DeferredRay> rays, BlockSnapshot snapshot,
+                                   double targetX, double targetBodyY, double targetHeadY, double targetZ) {
+            this.baseValues = baseValues;
+            this.rays = rays;
+            this.snapshot = snapshot;
+            this.targetX = targetX;
+            this.targetBodyY = targetBodyY;
+            this.targetHeadY = targetHeadY;
+            this.targetZ = targetZ;
+        }
+
+        /**
+         * Trace the deferred rays on the snapshot and return the final values. Collision shapes are evaluated
+         * without world or entity context here.
+         */
+        public Map<ResourceLocation, Double> complete() {
+            Map<ResourceLocation, Double> values = new LinkedHashMap<>(baseValues);
+            LineOfSight lineOfSight = null;
+            for (DeferredRay ray : rays) {
+                double contributed;
+                if (ray.model() != null) {
+                    double cutoffFactor = MIN_EFFECTIVE_RADIATION / ray.raw();
+                    double bodyFactor = ray.model().walkLineFactor(snapshot, ray.x(), ray.y(), ray.z(), targetX, targetBodyY, targetZ, cutoffFactor);
+                    double headFactor = ray.model().walkLineFactor(snapshot, ray.x(), ray.y(), ray.z(), targetX, targetHeadY, targetZ, cutoffFactor);
+                    contributed = ray.raw() * Math.max(bodyFactor, headFactor);
+                } else {
+                    if (lineOfSight == null) {
+                        lineOfSight = new LineOfSight(snapshot, EmptyBlockGetter.INSTANCE, CollisionContext.empty());
                     }
+                    boolean visible = lineOfSight.isClear(ray.x(), ray.y(), ray.z(), targetX, targetBodyY, targetZ, ray.ignoredSourceBlock())
+                            || lineOfSight.isClear(ray.x(), ray.y(), ray.z(), targetX, targetHeadY, targetZ, ray.ignoredSourceBlock());
+                    contributed = visible ? ray.raw() : 0.0;
                 }
-                if (x == endX && y == endY && z == endZ) {
-                    break;
-                }
-                processCurrent = true;
-                if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
-                    x += stepX;
-                    tMaxX += tDeltaX;
-                } else if (tMaxY <= tMaxZ) {
-                    y += stepY;
-                    tMaxY += tDeltaY;
-                } else {
-                    z += stepZ;
-                    tMaxZ += tDeltaZ;
+                if (contributed > MIN_EFFECTIVE_RADIATION) {
+                    values.merge(ray.typeId(), contributed, Double::sum);
                 }
             }
-
-            return factor;
+            return values;
         }
     }
-
-    private record TagRule(TagKey<Block> tag, double absorption) {
-    }
 }
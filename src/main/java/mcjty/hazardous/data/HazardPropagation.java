@@ -0,0 +1,828 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import mcjty.hazardous.Hazardous;
+import mcjty.hazardous.data.objects.HazardSource;
+import mcjty.hazardous.data.objects.HazardType;
+import mcjty.hazardous.setup.Config;
+import mcjty.lib.varia.Tools;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.Registry;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.util.Mth;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.EmptyBlockGetter;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.level.BlockEvent;
+import net.minecraftforge.event.level.ChunkEvent;
+import net.minecraftforge.event.level.LevelEvent;
+import net.minecraftforge.event.server.ServerStoppingEvent;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Optional propagation mode for block point sources that works like the vanilla light engine. Every emitting block
+ * floods its intensity through the blocks around it in all directions (so also around corners and behind walls
+ * through openings) where it decays with falloff, air attenuation and the absorption of the blocks it passes.
+ * There is one intensity per block and hazard type: where floods overlap the strongest one wins (like light), so
+ * the exposure of a player is a lookup at their body and head.
+ * <p>
+ * The intensities are kept by an engine on the worker threads (see AsyncHazardEvaluator) together with copies of
+ * the sections within range of the emitters. The main thread queues changed blocks, emitters and section copies
+ * (at most hazardPropagationSectionsPerTick copies and MAX_CHANGES_PER_TICK blocks per tick, the rest waits) and
+ * the engine only updates the blocks whose path went through a change. Changed intensities are published back to
+ * the main thread a tick or more later.
+ */
+public class HazardPropagation {
+
+    private static final Map<ResourceKey<Level>, HazardPropagation> LEVELS = new HashMap<>();
+
+    // Changed blocks handed to the engine per tick at most. The rest stays queued for later ticks
+    private static final int MAX_CHANGES_PER_TICK = 4096;
+
+    private final CompiledHazardPlan plan;
+    // Emitting block -> matching sources, as handed to the engine
+    private final Long2ObjectOpenHashMap<List<FloodSource>> emitters = new Long2ObjectOpenHashMap<>();
+    // Section -> number of emitters whose radius reaches into it
+    private final Long2IntOpenHashMap sectionUsers = new Long2IntOpenHashMap();
+    // Sections the engine has a copy of
+    private final LongOpenHashSet copiedSections = new LongOpenHashSet();
+    // Sections that are used and loaded but not copied yet
+    private final LongLinkedOpenHashSet pendingCopies = new LongLinkedOpenHashSet();
+    // Copied sections the engine has to forget (no longer used or unloaded)
+    private final LongArrayList droppedSections = new LongArrayList();
+    // Chunks whose emitters are known. Chunks are scanned when a player first needs them
+    private final LongOpenHashSet scannedChunks = new LongOpenHashSet();
+    // Blocks to look at again: changed blocks and possible emitters, in order of arrival
+    private final LongLinkedOpenHashSet dirty = new LongLinkedOpenHashSet();
+    // Hazard type -> brick (4x4x4 blocks) -> intensities, as last published by the engine
+    private final Map<ResourceLocation, Long2ObjectOpenHashMap<float[]>> intensities = new HashMap<>();
+    // Only used by the running job
+    private final Engine engine;
+    @Nullable private CompletableFuture<Map<ResourceLocation, Long2ObjectOpenHashMap<float[]>>> running = null;
+
+    private record FloodSource(ResourceLocation typeId, HazardSource.Transmission.Point point, HazardSource.Falloff falloff,
+                               @Nullable FalloffTable table, int radius, @Nullable AbsorptionModel model, boolean lineOfSight) {
+    }
+
+    /**
+     * Everything the engine has to apply in one go. Dropped sections are handled first, then new copies,
+     * then changed blocks and finally changed emitters (an empty list of sources removes an emitter).
+     */
+    private record Job(LongArrayList dropped, Long2ObjectOpenHashMap<PalettedContainer<BlockState>> copies,
+                       Long2ObjectOpenHashMap<BlockState> blocks, Long2ObjectOpenHashMap<List<FloodSource>> emitters) {
+    }
+
+    private HazardPropagation(CompiledHazardPlan plan, ServerLevel level) {
+        this.plan = plan;
+        this.engine = new Engine(level.getMinSection(), level.getMaxSection());
+    }
+
+    public static boolean isEnabled() {
+        return Config.HAZARD_PROPAGATION.get();
+    }
+
+    /**
+     * True if this source is handled by propagation when it is enabled. Sources with a larger range than
+     * hazardPropagationRadius keep using rays.
+     */
+    public static boolean isPropagated(CompiledHazardPlan.CompiledSource source) {
+        return source.association() instanceof HazardSource.Association.Block
+                && source.source().transmission() instanceof HazardSource.Transmission.Point
+                && source.effectiveRadius() > 0
+                && source.effectiveRadius() <= Config.HAZARD_PROPAGATION_RADIUS.get();
+    }
+
+    public static HazardPropagation get(ServerLevel level) {
+        CompiledHazardPlan plan = CompiledHazardPlan.get(level);
+        HazardPropagation propagation = LEVELS.get(level.dimension());
+        if (propagation == null || propagation.plan != plan) {
+            propagation = new HazardPropagation(plan, level);
+            LEVELS.put(level.dimension(), propagation);
+        }
+        return propagation;
+    }
+
+    public static void onNeighborNotify(BlockEvent.NeighborNotifyEvent event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            HazardPropagation propagation = LEVELS.get(level.dimension());
+            if (propagation != null) {
+                propagation.blockChanged(event.getPos());
+            }
+        }
+    }
+
+    public static void onChunkLoad(ChunkEvent.Load event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            HazardPropagation propagation = LEVELS.get(level.dimension());
+            if (propagation != null) {
+                propagation.chunkLoaded(level, event.getChunk().getPos());
+            }
+        }
+    }
+
+    public static void onChunkUnload(ChunkEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            HazardPropagation propagation = LEVELS.get(level.dimension());
+            if (propagation != null) {
+                propagation.chunkUnloaded(level, event.getChunk().getPos());
+            }
+        }
+    }
+
+    public static void onLevelUnload(LevelEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            LEVELS.remove(level.dimension());
+        }
+    }
+
+    public static void onServerStopping(ServerStoppingEvent event) {
+        LEVELS.clear();
+    }
+
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) {
+            return;
+        }
+        if (!isEnabled()) {
+            LEVELS.clear();
+            return;
+        }
+        Iterator<Map.Entry<ResourceKey<Level>, HazardPropagation>> iterator = LEVELS.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ResourceKey<Level>, HazardPropagation> entry = iterator.next();
+            ServerLevel level = event.getServer().getLevel(entry.getKey());
+            if (level == null) {
+                iterator.remove();
+            } else {
+                entry.getValue().tick(level);
+            }
+        }
+    }
+
+    /**
+     * Propagated exposure for a hazard type at the body or head of the player, whichever is higher.
+     */
+    public double getExposure(ServerLevel level, ResourceLocation typeId, Player player) {
+        scanAround(level, player.getBlockX(), player.getBlockZ());
+        Long2ObjectOpenHashMap<float[]> bricks = intensities.get(typeId);
+        if (bricks == null) {
+            return 0.0;
+        }
+        int x = player.getBlockX();
+        int z = player.getBlockZ();
+        double body = getIntensity(bricks, x, Mth.floor(player.getY() + 0.6), z);
+        double head = getIntensity(bricks, x, Mth.floor(player.getEyeY()), z);
+        return Math.max(0.0, Math.max(body, head));
+    }
+
+    private static double getIntensity(Long2ObjectOpenHashMap<float[]> bricks, int x, int y, int z) {
+        float[] values = bricks.get(brickKey(x, y, z));
+        return values == null ? 0.0 : values[cellIndex(x, y, z)];
+    }
+
+    private void scanAround(ServerLevel level, int x, int z) {
+        int radius = Config.HAZARD_PROPAGATION_RADIUS.get();
+        for (int cx = SectionPos.blockToSectionCoord(x - radius); cx <= SectionPos.blockToSectionCoord(x + radius); cx++) {
+            for (int cz = SectionPos.blockToSectionCoord(z - radius); cz <= SectionPos.blockToSectionCoord(z + radius); cz++) {
+                long key = ChunkPos.asLong(cx, cz);
+                if (scannedChunks.contains(key) || ChunkCursor.getLoadedChunk(level, cx, cz) == null) {
+                    continue;
+                }
+                scannedChunks.add(key);
+                LongArrayList candidates = new LongArrayList();
+                HazardBlockIndex.collect(level, SectionPos.sectionToBlockCoord(cx), level.getMinBuildHeight(), SectionPos.sectionToBlockCoord(cz),
+                        SectionPos.sectionToBlockCoord(cx) + 15, level.getMaxBuildHeight() - 1, SectionPos.sectionToBlockCoord(cz) + 15, candidates);
+                dirty.addAll(candidates);
+            }
+        }
+    }
+
+    private void blockChanged(BlockPos pos) {
+        // Could be a new emitter, an emitter that is gone or a block the engine has a copy of.
+        // This is sorted out when it is processed
+        if (copiedSections.contains(SectionPos.asLong(pos))
+                || scannedChunks.contains(ChunkPos.asLong(SectionPos.blockToSectionCoord(pos.getX()), SectionPos.blockToSectionCoord(pos.getZ())))) {
+            dirty.add(pos.asLong());
+        }
+    }
+
+    private void chunkLoaded(ServerLevel level, ChunkPos pos) {
+        // Floods that ran into this chunk while it was unloaded stopped there, they continue once it is copied
+        for (int sy = level.getMinSection(); sy < level.getMaxSection(); sy++) {
+            long key = SectionPos.asLong(pos.x, sy, pos.z);
+            if (sectionUsers.get(key) > 0 && !copiedSections.contains(key)) {
+                pendingCopies.add(key);
+            }
+        }
+    }
+
+    private void chunkUnloaded(ServerLevel level, ChunkPos pos) {
+        scannedChunks.remove(pos.toLong());
+        for (int sy = level.getMinSection(); sy < level.getMaxSection(); sy++) {
+            long key = SectionPos.asLong(pos.x, sy, pos.z);
+            pendingCopies.remove(key);
+            if (copiedSections.remove(key)) {
+                droppedSections.add(key);
+            }
+        }
+        // Emitters in the chunk are removed when they are processed (they read as unloaded)
+        LongIterator iterator = emitters.keySet().iterator();
+        while (iterator.hasNext()) {
+            long emitter = iterator.nextLong();
+            if (SectionPos.blockToSectionCoord(BlockPos.getX(emitter)) == pos.x && SectionPos.blockToSectionCoord(BlockPos.getZ(emitter)) == pos.z) {
+                dirty.add(emitter);
+            }
+        }
+    }
+
+    private void tick(ServerLevel level) {
+        if (running != null) {
+            if (!running.isDone()) {
+                return;
+            }
+            try {
+                for (Map.Entry<ResourceLocation, Long2ObjectOpenHashMap<float[]>> entry : running.get().entrySet()) {
+                    Long2ObjectOpenHashMap<float[]> bricks = intensities.computeIfAbsent(entry.getKey(), k -> new Long2ObjectOpenHashMap<>());
+                    for (Long2ObjectMap.Entry<float[]> brick : entry.getValue().long2ObjectEntrySet()) {
+                        if (brick.getValue() == null) {
+                            bricks.remove(brick.getLongKey());
+                        } else {
+                            bricks.put(brick.getLongKey(), brick.getValue());
+                        }
+                    }
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                Hazardous.LOGGER.error("Hazard propagation failed", e);
+            }
+            running = null;
+        }
+        if (dirty.isEmpty() && pendingCopies.isEmpty() && droppedSections.isEmpty()) {
+            return;
+        }
+
+        Registry<HazardType> types = Tools.getRegistryAccess(level).registryOrThrow(CustomRegistries.HAZARD_TYPE_REGISTRY_KEY);
+        ChunkCursor cursor = new ChunkCursor(level);
+        Job job = new Job(new LongArrayList(), new Long2ObjectOpenHashMap<>(), new Long2ObjectOpenHashMap<>(), new Long2ObjectOpenHashMap<>());
+        int changes = 0;
+        while (!dirty.isEmpty() && changes < MAX_CHANGES_PER_TICK) {
+            long pos = dirty.removeFirstLong();
+            changes++;
+            BlockState state = cursor.getBlockState(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos));
+            List<FloodSource> sources = state == null ? List.of() : getFloodSources(types, state);
+            List<FloodSource> old = emitters.get(pos);
+            if (!sources.equals(old == null ? List.of() : old)) {
+                if (old != null) {
+                    updateSectionUsers(level, pos, getRadius(old), -1);
+                }
+                if (sources.isEmpty()) {
+                    emitters.remove(pos);
+                } else {
+                    emitters.put(pos, sources);
+                    updateSectionUsers(level, pos, getRadius(sources), 1);
+                }
+                job.emitters().put(pos, sources);
+            }
+            if (state != null && copiedSections.contains(SectionPos.asLong(BlockPos.getX(pos) >> 4, BlockPos.getY(pos) >> 4, BlockPos.getZ(pos) >> 4))) {
+                job.blocks().put(pos, state);
+            }
+        }
+        job.dropped().addAll(droppedSections);
+        droppedSections.clear();
+        int copies = Config.HAZARD_PROPAGATION_SECTIONS_PER_TICK.get();
+        while (!pendingCopies.isEmpty() && job.copies().size() < copies) {
+            long key = pendingCopies.removeFirstLong();
+            LevelChunkSection section = cursor.getSection(SectionPos.x(key), SectionPos.y(key), SectionPos.z(key));
+            if (section != null) {
+                job.copies().put(key, section.getStates().copy());
+                copiedSections.add(key);
+            }
+        }
+        if (job.emitters().isEmpty() && job.blocks().isEmpty() && job.copies().isEmpty() && job.dropped().isEmpty()) {
+            return;
+        }
+        running = AsyncHazardEvaluator.supplyAsync(() -> engine.apply(job));
+    }
+
+    // Count an emitter in (or out of) every section within its radius and queue the copies and drops that follow
+    private void updateSectionUsers(ServerLevel level, long pos, int radius, int delta) {
+        int x = BlockPos.getX(pos);
+        int y = BlockPos.getY(pos);
+        int z = BlockPos.getZ(pos);
+        int minY = Math.max(level.getMinSection(), SectionPos.blockToSectionCoord(y - radius));
+        int maxY = Math.min(level.getMaxSection() - 1, SectionPos.blockToSectionCoord(y + radius));
+        for (int sx = SectionPos.blockToSectionCoord(x - radius); sx <= SectionPos.blockToSectionCoord(x + radius); sx++) {
+            for (int sz = SectionPos.blockToSectionCoord(z - radius); sz <= SectionPos.blockToSectionCoord(z + radius); sz++) {
+                boolean loaded = ChunkCursor.getLoadedChunk(level, sx, sz) != null;
+                for (int sy = minY; sy <= maxY; sy++) {
+                    long key = SectionPos.asLong(sx, sy, sz);
+                    int users = sectionUsers.addTo(key, delta) + delta;
+                    if (users <= 0) {
+                        sectionUsers.remove(key);
+                        pendingCopies.remove(key);
+                        if (copiedSections.remove(key)) {
+                            droppedSections.add(key);
+                        }
+                    } else if (users == delta && loaded && !copiedSections.contains(key)) {
+                        pendingCopies.add(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<FloodSource> getFloodSources(Registry<HazardType> types, BlockState state) {
+        List<FloodSource> result = null;
+        for (CompiledHazardPlan.CompiledSource source : plan.getBlockSources()) {
+            if (!isPropagated(source) || !source.matches(state)) {
+                continue;
+            }
+            HazardType type = types.get(source.source().hazardType());
+            if (type == null) {
+                continue;
+            }
+            HazardSource.Transmission.Point point = (HazardSource.Transmission.Point) source.source().transmission();
+            AbsorptionModel model = type.blocking() instanceof HazardType.Blocking.Absorption absorption ? plan.getAbsorptionModel(absorption) : null;
+            if (result == null) {
+                result = new ArrayList<>();
+            }
+            result.add(new FloodSource(source.source().hazardType(), point, source.source().falloff(), source.falloffTable(),
+                    source.effectiveRadius(), model, model == null && point.requiresLineOfSight()));
+        }
+        return result == null ? List.of() : result;
+    }
+
+    private static int getRadius(List<FloodSource> sources) {
+        int radius = 0;
+        for (FloodSource source : sources) {
+            radius = Math.max(radius, source.radius());
+        }
+        return radius;
+    }
+
+    private static long brickKey(int x, int y, int z) {
+        return BlockPos.asLong(x >> 2, y >> 2, z >> 2);
+    }
+
+    private static int cellIndex(int x, int y, int z) {
+        return (x & 3) + (z & 3) * 4 + (y & 3) * 16;
+    }
+
+    // Falloff and air attenuation at a block reached with a path of the given length
+    private static double getIntensity(FloodSource source, int dx, int dy, int dz, int length) {
+        int manhattan = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+        double distSq = dx * dx + dy * dy + dz * dz;
+        if (length > manhattan) {
+            double stretch = (double) length / manhattan;
+            distSq *= stretch * stretch;
+        }
+        if (source.table() != null) {
+            return source.table().get(distSq);
+        }
+        return FalloffTable.compute(source.point(), source.falloff(), Math.sqrt(distSq));
+    }
+
+    private static double getTransmission(BlockReader reader, FloodSource source, int x, int y, int z) {
+        if (source.model() == null && !source.lineOfSight()) {
+            return 1.0;
+        }
+        BlockState state = reader.getBlockState(x, y, z);
+        if (state == null) {
+            // Unloaded
+            return 0.0;
+        }
+        if (source.model() != null) {
+            return 1.0 - source.model().getAbsorption(state);
+        }
+        if (state.isAir()) {
+            return 1.0;
+        }
+        return state.getCollisionShape(EmptyBlockGetter.INSTANCE, BlockPos.ZERO).isEmpty() ? 1.0 : 0.0;
+    }
+
+    /**
+     * Worker side of the propagation: the section copies, the emitters and one field of intensities per hazard type.
+     * Only used by one job at a time (the next job is only started after the previous one finished).
+     * <p>
+     * Every block with an intensity remembers the emitter (and source) it came from, the length of its path and the
+     * direction of the block it was reached from. These form a tree per emitter, like the light engine a change
+     * first clears the blocks below the changed block in its tree and then floods again, best first, from the
+     * changed block and the blocks bordering the cleared part.
+     */
+    private static class Engine implements BlockReader {
+
+        private static final BlockState VOID_AIR = Blocks.VOID_AIR.defaultBlockState();
+        // Parent direction of the block of an emitter itself
+        private static final byte SELF = 6;
+        private static final byte NONE = -1;
+
+        private final int minSection;
+        private final int maxSection;
+        private final Long2ObjectOpenHashMap<PalettedContainer<BlockState>> sections = new Long2ObjectOpenHashMap<>();
+        private final Long2ObjectOpenHashMap<List<FloodSource>> emitters = new Long2ObjectOpenHashMap<>();
+        private final Map<ResourceLocation, Field> fields = new HashMap<>();
+        private final LongArrayList stack = new LongArrayList();
+
+        private Engine(int minSection, int maxSection) {
+            this.minSection = minSection;
+            this.maxSection = maxSection;
+        }
+
+        @Override
+        @Nullable
+        public BlockState getBlockState(int x, int y, int z) {
+            int sectionY = SectionPos.blockToSectionCoord(y);
+            if (sectionY < minSection || sectionY >= maxSection) {
+                return VOID_AIR;
+            }
+            // Null if the section isn't loaded or not copied yet
+            PalettedContainer<BlockState> states = sections.get(SectionPos.asLong(SectionPos.blockToSectionCoord(x), sectionY, SectionPos.blockToSectionCoord(z)));
+            return states == null ? null : states.get(x & 15, y & 15, z & 15);
+        }
+
+        private Map<ResourceLocation, Long2ObjectOpenHashMap<float[]>> apply(Job job) {
+            for (long key : job.dropped()) {
+                // Floods stop at blocks that can't be read, so everything that went through this section goes
+                sections.remove(key);
+                forEachCellInSection(key, this::changed);
+            }
+            for (Long2ObjectMap.Entry<PalettedContainer<BlockState>> entry : job.copies().long2ObjectEntrySet()) {
+                long key = entry.getLongKey();
+                sections.put(key, entry.getValue());
+                // Blocks in the section were reached before but couldn't pass anything on
+                forEachCellInSection(key, Field::push);
+            }
+            for (Long2ObjectMap.Entry<BlockState> entry : job.blocks().long2ObjectEntrySet()) {
+                long pos = entry.getLongKey();
+                PalettedContainer<BlockState> states = sections.get(SectionPos.asLong(BlockPos.getX(pos) >> 4, BlockPos.getY(pos) >> 4, BlockPos.getZ(pos) >> 4));
+                if (states != null) {
+                    states.getAndSetUnchecked(BlockPos.getX(pos) & 15, BlockPos.getY(pos) & 15, BlockPos.getZ(pos) & 15, entry.getValue());
+                    for (Field field : fields.values()) {
+                        changed(field, pos);
+                    }
+                }
+            }
+            for (Long2ObjectMap.Entry<List<FloodSource>> entry : job.emitters().long2ObjectEntrySet()) {
+                setEmitter(entry.getLongKey(), entry.getValue());
+            }
+
+            Map<ResourceLocation, Long2ObjectOpenHashMap<float[]>> published = new HashMap<>();
+            for (Map.Entry<ResourceLocation, Field> entry : fields.entrySet()) {
+                Field field = entry.getValue();
+                flood(field);
+                if (field.changed.isEmpty()) {
+                    continue;
+                }
+                Long2ObjectOpenHashMap<float[]> bricks = new Long2ObjectOpenHashMap<>(field.changed.size());
+                LongIterator iterator = field.changed.iterator();
+                while (iterator.hasNext()) {
+                    long key = iterator.nextLong();
+                    Brick brick = field.bricks.get(key);
+                    bricks.put(key, brick == null ? null : brick.values.clone());
+                }
+                field.changed.clear();
+                published.put(entry.getKey(), bricks);
+            }
+            return published;
+        }
+
+        private void forEachCellInSection(long section, CellConsumer consumer) {
+            int bx0 = SectionPos.x(section) * 4;
+            int by0 = SectionPos.y(section) * 4;
+            int bz0 = SectionPos.z(section) * 4;
+            for (Field field : fields.values()) {
+                for (int by = by0; by < by0 + 4; by++) {
+                    for (int bz = bz0; bz < bz0 + 4; bz++) {
+                        for (int bx = bx0; bx < bx0 + 4; bx++) {
+                            Brick brick = field.bricks.get(BlockPos.asLong(bx, by, bz));
+                            if (brick == null) {
+                                continue;
+                            }
+                            for (int i = 0; i < 64; i++) {
+                                if (brick.values[i] > 0.0f) {
+                                    consumer.accept(field, BlockPos.asLong(bx * 4 + (i & 3), by * 4 + (i >> 4), bz * 4 + ((i >> 2) & 3)));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        // The transmission of this block changed: what it passed on is cleared and it floods again
+        private void changed(Field field, long pos) {
+            if (field.getValue(pos) > 0.0f) {
+                clearBelow(field, pos, false);
+                field.push(pos);
+            }
+        }
+
+        private void setEmitter(long pos, List<FloodSource> sources) {
+            if (emitters.containsKey(pos)) {
+                for (Field field : fields.values()) {
+                    if (field.getParent(pos) == SELF) {
+                        clearBelow(field, pos, true);
+                    }
+                }
+            }
+            if (sources.isEmpty()) {
+                emitters.remove(pos);
+                return;
+            }
+            emitters.put(pos, sources);
+            for (int slot = 0; slot < sources.size(); slot++) {
+                FloodSource source = sources.get(slot);
+                Field field = fields.computeIfAbsent(source.typeId(), k -> new Field());
+                float value = (float) getIntensity(source, 0, 0, 0, 0);
+                if (value <= HazardManager.MIN_EFFECTIVE_RADIATION) {
+                    continue;
+                }
+                // With more sources of the same type on one block the strongest one floods
+                if (field.getParent(pos) == SELF && field.getValue(pos) >= value) {
+                    continue;
+                }
+                if (field.getValue(pos) > 0.0f) {
+                    clearBelow(field, pos, false);
+                }
+                set(field, pos, value, 0, SELF, 0, 0, 0, slot);
+            }
+        }
+
+        /**
+         * Clear the blocks that were reached through this block (and the block itself if 'self' is true). Blocks
+         * bordering the cleared part keep their intensity and are queued to flood into it again.
+         */
+        private void clearBelow(Field field, long root, boolean self) {
+            if (self) {
+                field.clear(root);
+            }
+            stack.clear();
+            stack.add(root);
+            while (!stack.isEmpty()) {
+                long pos = stack.removeLong(stack.size() - 1);
+                for (int direction = 0; direction < 6; direction++) {
+                    long next = offset(pos, direction);
+                    if (field.getValue(next) <= 0.0f) {
+                        continue;
+                    }
+                    if (field.getParent(next) == (direction ^ 1)) {
+                        field.clear(next);
+                        stack.add(next);
+                    } else {
+                        field.push(next);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Best first flood of the queued blocks. A block gets the highest intensity of the paths that reach it: the
+         * transmission of the blocks on the path times the falloff at the euclidean distance, stretched by how much
+         * longer the path is than the shortest unobstructed one (the manhattan distance). In open space that is
+         * exactly the falloff of a ray, behind a wall the flood goes around it and arrives weaker. The block a value
+         * is stored for doesn't absorb itself (like the target of a ray).
+         */
+        private void flood(Field field) {
+            MaxHeap heap = field.heap;
+            while (!heap.isEmpty()) {
+                float key = heap.peekKey();
+                long pos = heap.pop();
+                Brick brick = field.bricks.get(brickKey(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos)));
+                int index = cellIndex(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos));
+                if (brick == null || brick.values[index] != key) {
+                    // Cleared or changed after it was queued
+                    continue;
+                }
+                int origin = brick.origins[index];
+                int dx = -originX(origin);
+                int dy = -originY(origin);
+                int dz = -originZ(origin);
+                long emitter = BlockPos.offset(pos, -dx, -dy, -dz);
+                List<FloodSource> sources = emitters.get(emitter);
+                int slot = originSlot(origin);
+                if (sources == null || slot >= sources.size()) {
+                    continue;
+                }
+                FloodSource source = sources.get(slot);
+                int length = brick.lengths[index];
+                double out;
+                if (brick.parents[index] == SELF) {
+                    // The emitter itself doesn't block
+                    out = 1.0;
+                } else {
+                    double factor = key / getIntensity(source, dx, dy, dz, length);
+                    out = factor * getTransmission(this, source, BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos));
+                }
+                if (out <= 0.0 || length >= Short.MAX_VALUE) {
+                    continue;
+                }
+                int radius = source.radius();
+                for (int direction = 0; direction < 6; direction++) {
+                    int step = (direction & 1) == 0 ? -1 : 1;
+                    int nx = dx + (direction >> 1 == 0 ? step : 0);
+                    int ny = dy + (direction >> 1 == 1 ? step : 0);
+                    int nz = dz + (direction >> 1 == 2 ? step : 0);
+                    if (nx * nx + ny * ny + nz * nz > radius * radius) {
+                        continue;
+                    }
+                    float value = (float) (getIntensity(source, nx, ny, nz, length + 1) * out);
+                    if (value <= HazardManager.MIN_EFFECTIVE_RADIATION) {
+                        continue;
+                    }
+                    long next = offset(pos, direction);
+                    float current = field.getValue(next);
+                    if (value <= current || (current > 0.0f && field.getParent(next) == SELF)) {
+                        continue;
+                    }
+                    if (current > 0.0f) {
+                        // What the block passed on came from its old value
+                        clearBelow(field, next, false);
+                        if (field.getValue(pos) != key) {
+                            // This block was below it
+                            break;
+                        }
+                    }
+                    set(field, next, value, length + 1, (byte) (direction ^ 1), -nx, -ny, -nz, slot);
+                }
+            }
+        }
+
+        private static void set(Field field, long pos, float value, int length, byte parent, int originX, int originY, int originZ, int slot) {
+            int x = BlockPos.getX(pos);
+            int y = BlockPos.getY(pos);
+            int z = BlockPos.getZ(pos);
+            long key = brickKey(x, y, z);
+            Brick brick = field.bricks.computeIfAbsent(key, k -> new Brick());
+            int index = cellIndex(x, y, z);
+            if (brick.values[index] <= 0.0f) {
+                brick.count++;
+            }
+            brick.values[index] = value;
+            brick.lengths[index] = (short) length;
+            brick.parents[index] = parent;
+            brick.origins[index] = (originX + 64) | ((originY + 64) << 7) | ((originZ + 64) << 14) | (slot << 21);
+            field.changed.add(key);
+            field.heap.push(pos, value);
+        }
+
+        private static long offset(long pos, int direction) {
+            int step = (direction & 1) == 0 ? -1 : 1;
+            return switch (direction >> 1) {
+                case 0 -> BlockPos.offset(pos, step, 0, 0);
+                case 1 -> BlockPos.offset(pos, 0, step, 0);
+                default -> BlockPos.offset(pos, 0, 0, step);
+            };
+        }
+
+        // Origins are stored relative to the block: the offset from the block to its emitter and the source slot
+        private static int originX(int origin) {
+            return (origin & 127) - 64;
+        }
+
+        private static int originY(int origin) {
+            return ((origin >> 7) & 127) - 64;
+        }
+
+        private static int originZ(int origin) {
+            return ((origin >> 14) & 127) - 64;
+        }
+
+        private static int originSlot(int origin) {
+            return origin >>> 21;
+        }
+    }
+
+    @FunctionalInterface
+    private interface CellConsumer {
+        void accept(Field field, long pos);
+    }
+
+    // Intensities of one hazard type, in bricks of 4x4x4 blocks that only exist where something was reached
+    private static class Field {
+        private final Long2ObjectOpenHashMap<Brick> bricks = new Long2ObjectOpenHashMap<>();
+        // Bricks changed since the last publish
+        private final LongOpenHashSet changed = new LongOpenHashSet();
+        // Blocks that have to flood, reused between jobs
+        private final MaxHeap heap = new MaxHeap();
+
+        private float getValue(long pos) {
+            Brick brick = bricks.get(brickKey(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos)));
+            return brick == null ? 0.0f : brick.values[cellIndex(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos))];
+        }
+
+        private byte getParent(long pos) {
+            Brick brick = bricks.get(brickKey(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos)));
+            return brick == null ? Engine.NONE : brick.parents[cellIndex(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos))];
+        }
+
+        private void push(long pos) {
+            heap.push(pos, getValue(pos));
+        }
+
+        private void clear(long pos) {
+            long key = brickKey(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos));
+            Brick brick = bricks.get(key);
+            int index = cellIndex(BlockPos.getX(pos), BlockPos.getY(pos), BlockPos.getZ(pos));
+            if (brick == null || brick.values[index] <= 0.0f) {
+                return;
+            }
+            brick.values[index] = 0.0f;
+            brick.parents[index] = Engine.NONE;
+            if (--brick.count == 0) {
+                bricks.remove(key);
+            }
+            changed.add(key);
+        }
+    }
+
+    private static class Brick {
+        private final float[] values = new float[64];
+        private final short[] lengths = new short[64];
+        private final byte[] parents = new byte[64];
+        private final int[] origins = new int[64];
+        // Number of blocks with an intensity
+        private int count = 0;
+
+        private Brick() {
+            Arrays.fill(parents, Engine.NONE);
+        }
+    }
+
+    // Binary max heap of block positions keyed on intensity. Positions can be in it more than once, stale ones are skipped
+    private static class MaxHeap {
+        private long[] positions = new long[256];
+        private float[] keys = new float[256];
+        private int size = 0;
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private float peekKey() {
+            return keys[0];
+        }
+
+        private void push(long pos, float key) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[parent] >= key) {
+                    break;
+                }
+                positions[i] = positions[parent];
+                keys[i] = keys[parent];
+                i = parent;
+            }
+            positions[i] = pos;
+            keys[i] = key;
+        }
+
+        private long pop() {
+            long top = positions[0];
+            size--;
+            long pos = positions[size];
+            float key = keys[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] > keys[child]) {
+                    child++;
+                }
+                if (keys[child] <= key) {
+                    break;
+                }
+                positions[i] = positions[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            positions[i] = pos;
+            keys[i] = key;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import mcjty.hazardous.data.objects.HazardSource;
+import net.minecraft.core.Holder;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.tags.TagKey;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The stack predicates of a list of sources, indexed per item. Tags are expanded to their items when the index
+ * is built (so tags must be bound by then). Stacks of items that no predicate refers to are rejected with a single
+ * map lookup.
+ */
+public class ItemPredicateIndex {
+
+    public static final ItemPredicateIndex EMPTY = new ItemPredicateIndex(new Reference2ObjectOpenHashMap<>(), new ReferenceOpenHashSet<>());
+
+    private final Reference2ObjectOpenHashMap<Item, List<Entry>> byItem;
+    // Items with at least one predicate that looks at the nbt of the stack
+    private final ReferenceOpenHashSet<Item> nbtItems;
+
+    // Entries of an item are sorted by source index
+    private record Entry(int sourceIndex, HazardSource.Association.Item.ItemStackPredicate predicate) {
+
+        private double getMultiplier(ItemStack stack) {
+            if (stack.getCount() < predicate.count()) {
+                return 0.0;
+            }
+            if (predicate.nbt().isPresent() && (stack.getTag() == null || !NbtUtils.compareNbt(predicate.nbt().get(), stack.getTag(), true))) {
+                return 0.0;
+            }
+            return (double) stack.getCount() / predicate.count();
+        }
+    }
+
+    private ItemPredicateIndex(Reference2ObjectOpenHashMap<Item, List<Entry>> byItem, ReferenceOpenHashSet<Item> nbtItems) {
+        this.byItem = byItem;
+        this.nbtItems = nbtItems;
+    }
+
+    /**
+     * @param stacks the stack predicates of a source. Sources are identified by their position in the list
+     */
+    public static ItemPredicateIndex build(List<CompiledHazardPlan.CompiledSource> sources,
+                                           Function<CompiledHazardPlan.CompiledSource, List<HazardSource.Association.Item.ItemStackPredicate>> stacks) {
+        Reference2ObjectOpenHashMap<Item, List<Entry>> byItem = new Reference2ObjectOpenHashMap<>();
+        for (int i = 0; i < sources.size(); i++) {
+            for (HazardSource.Association.Item.ItemStackPredicate predicate : stacks.apply(sources.get(i))) {
+                Entry entry = new Entry(i, predicate);
+                if (predicate.isTag()) {
+                    for (Holder<Item> holder : BuiltInRegistries.ITEM.getTagOrEmpty(TagKey.create(Registries.ITEM, predicate.itemOrTag()))) {
+                        byItem.computeIfAbsent(holder.value(), k -> new ArrayList<>()).add(entry);
+                    }
+                } else if (BuiltInRegistries.ITEM.containsKey(predicate.itemOrTag())) {
+                    byItem.computeIfAbsent(BuiltInRegistries.ITEM.get(predicate.itemOrTag()), k -> new ArrayList<>()).add(entry);
+                }
+            }
+        }
+        ReferenceOpenHashSet<Item> nbtItems = new ReferenceOpenHashSet<>();
+        for (Map.Entry<Item, List<Entry>> entry : byItem.entrySet()) {
+            for (Entry e : entry.getValue()) {
+                if (e.predicate().nbt().isPresent()) {
+                    nbtItems.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return new ItemPredicateIndex(byItem, nbtItems);
+    }
+
+    /**
+     * True if the multiplier of stacks of this item depends on their nbt.
+     */
+    public boolean isNbtSensitive(Item item) {
+        return nbtItems.contains(item);
+    }
+
+    /**
+     * Stack multiplier of this stack for one source: the best matching predicate of that source, 0 if none matches.
+     */
+    public double getMultiplier(int sourceIndex, ItemStack stack) {
+        List<Entry> entries = byItem.get(stack.getItem());
+        if (entries == null || stack.isEmpty()) {
+            return 0.0;
+        }
+        double best = 0.0;
+        for (Entry entry : entries) {
+            if (entry.sourceIndex() == sourceIndex) {
+                best = Math.max(best, entry.getMultiplier(stack));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Add the stack multiplier of this stack for every source to 'multipliers'. Returns true if anything was added.
+     */
+    public boolean accumulate(ItemStack stack, double[] multipliers) {
+        List<Entry> entries = byItem.get(stack.getItem());
+        if (entries == null || stack.isEmpty()) {
+            return false;
+        }
+        boolean added = false;
+        int current = -1;
+        double best = 0.0;
+        for (Entry entry : entries) {
+            if (entry.sourceIndex() != current) {
+                if (best > 0.0) {
+                    multipliers[current] += best;
+                    added = true;
+                }
+                current = entry.sourceIndex();
+                best = 0.0;
+            }
+            best = Math.max(best, entry.getMultiplier(stack));
+        }
+        if (best > 0.0) {
+            multipliers[current] += best;
+            added = true;
+        }
+        return added;
+    }
+}
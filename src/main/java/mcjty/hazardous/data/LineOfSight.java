@@ -0,0 +1,228 @@
+package mcjty.hazardous.data;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.BlockGetter;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.phys.AABB;
+import net.minecraft.world.phys.shapes.CollisionContext;
+import net.minecraft.world.phys.shapes.Shapes;
+import net.minecraft.world.phys.shapes.VoxelShape;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Line of sight test between two points using block collision shapes. Fluids are ignored.
+ * Not thread safe, but one instance can be used for any number of rays.
+ */
+public class LineOfSight {
+
+    // Boxes of non-full collision shapes as flat minX, minY, minZ, maxX, maxY, maxZ arrays. Blocks almost always
+    // return shared shape instances, so this stays small. Shared by all threads, cleared when it gets too big
+    private static final Map<VoxelShape, double[]> BOXES = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_SHAPES = 1024;
+
+    private final BlockReader reader;
+    private final BlockGetter getter;
+    private final CollisionContext context;
+    private final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+
+    /**
+     * @param reader  where the block states come from
+     * @param getter  passed to getCollisionShape (some blocks look at their neighbours)
+     * @param context collision context of the entity that is looking
+     */
+    public LineOfSight(BlockReader reader, BlockGetter getter, CollisionContext context) {
+        this.reader = reader;
+        this.getter = getter;
+        this.context = context;
+    }
+
+    /**
+     * Single voxel walk that checks chunk availability and block collision shapes together. Fluids are
+     * ignored. A ray that enters an unloaded chunk is considered blocked.
+     */
+    public boolean isClear(double sx, double sy, double sz, double ex, double ey, double ez, @Nullable BlockPos ignoredSourceBlock) {
+        if (ignoredSourceBlock != null
+                && Mth.floor(sx) == ignoredSourceBlock.getX()
+                && Mth.floor(sy) == ignoredSourceBlock.getY()
+                && Mth.floor(sz) == ignoredSourceBlock.getZ()) {
+            double t = getSourceBlockExit(sx, sy, sz, ex, ey, ez, ignoredSourceBlock);
+            sx += (ex - sx) * t;
+            sy += (ey - sy) * t;
+            sz += (ez - sz) * t;
+        }
+
+        int x = Mth.floor(sx);
+        int y = Mth.floor(sy);
+        int z = Mth.floor(sz);
+        int endX = Mth.floor(ex);
+        int endY = Mth.floor(ey);
+        int endZ = Mth.floor(ez);
+
+        double dx = ex - sx;
+        double dy = ey - sy;
+        double dz = ez - sz;
+
+        int stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+        int stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+        int stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
+
+        double tDeltaX = stepX == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dx);
+        double tDeltaY = stepY == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dy);
+        double tDeltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dz);
+
+        double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY
+                : (stepX > 0 ? (x + 1.0 - sx) : (sx - x)) * tDeltaX;
+        double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY
+                : (stepY > 0 ? (y + 1.0 - sy) : (sy - y)) * tDeltaY;
+        double tMaxZ = stepZ == 0 ? Double.POSITIVE_INFINITY
+                : (stepZ > 0 ? (z + 1.0 - sz) : (sz - z)) * tDeltaZ;
+
+        int maxSteps = 1 + Math.abs(endX - x) + Math.abs(endY - y) + Math.abs(endZ - z);
+        for (int i = 0; i <= maxSteps; i++) {
+            if (blocksSight(x, y, z, sx, sy, sz, dx, dy, dz)) {
+                return false;
+            }
+            if (x == endX && y == endY && z == endZ) {
+                return true;
+            }
+            if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
+                x += stepX;
+                tMaxX += tDeltaX;
+            } else if (tMaxY <= tMaxZ) {
+                y += stepY;
+                tMaxY += tDeltaY;
+            } else {
+                z += stepZ;
+                tMaxZ += tDeltaZ;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean blocksSight(int x, int y, int z, double sx, double sy, double sz, double dx, double dy, double dz) {
+        BlockState state = reader.getBlockState(x, y, z);
+        if (state == null) {
+            return true;
+        }
+        if (state.isAir()) {
+            return false;
+        }
+        VoxelShape shape = state.getCollisionShape(getter, pos.set(x, y, z), context);
+        if (shape.isEmpty()) {
+            return false;
+        }
+        if (shape == Shapes.block()) {
+            // The ray passes through this voxel so it has to hit a full cube
+            return true;
+        }
+        double[] boxes = getBoxes(shape);
+        for (int i = 0; i < boxes.length; i += 6) {
+            if (segmentIntersects(boxes, i, x, y, z, sx, sy, sz, dx, dy, dz)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double[] getBoxes(VoxelShape shape) {
+        double[] boxes = BOXES.get(shape);
+        if (boxes == null) {
+            List<AABB> list = shape.toAabbs();
+            boxes = new double[list.size() * 6];
+            for (int i = 0; i < list.size(); i++) {
+                AABB box = list.get(i);
+                boxes[i * 6] = box.minX;
+                boxes[i * 6 + 1] = box.minY;
+                boxes[i * 6 + 2] = box.minZ;
+                boxes[i * 6 + 3] = box.maxX;
+                boxes[i * 6 + 4] = box.maxY;
+                boxes[i * 6 + 5] = box.maxZ;
+            }
+            if (BOXES.size() >= MAX_CACHED_SHAPES) {
+                BOXES.clear();
+            }
+            BOXES.put(shape, boxes);
+        }
+        return boxes;
+    }
+
+    // Slab test of the segment against the box at 'offset' in 'boxes', relative to block ox, oy, oz
+    private static boolean segmentIntersects(double[] boxes, int offset, int ox, int oy, int oz, double sx, double sy, double sz, double dx, double dy, double dz) {
+        double tMin = 0.0;
+        double tMax = 1.0;
+        double minX = ox + boxes[offset];
+        double minY = oy + boxes[offset + 1];
+        double minZ = oz + boxes[offset + 2];
+        double maxX = ox + boxes[offset + 3];
+        double maxY = oy + boxes[offset + 4];
+        double maxZ = oz + boxes[offset + 5];
+        if (dx == 0.0) {
+            if (sx < minX || sx > maxX) {
+                return false;
+            }
+        } else {
+            double t1 = (minX - sx) / dx;
+            double t2 = (maxX - sx) / dx;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+        if (dy == 0.0) {
+            if (sy < minY || sy > maxY) {
+                return false;
+            }
+        } else {
+            double t1 = (minY - sy) / dy;
+            double t2 = (maxY - sy) / dy;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+        if (dz == 0.0) {
+            if (sz < minZ || sz > maxZ) {
+                return false;
+            }
+        } else {
+            double t1 = (minZ - sz) / dz;
+            double t2 = (maxZ - sz) / dz;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+        return tMin <= tMax;
+    }
+
+    /**
+     * Fraction of the segment at which the ray leaves the source block (slightly past the face).
+     */
+    private static double getSourceBlockExit(double sx, double sy, double sz, double ex, double ey, double ez, BlockPos sourceBlock) {
+        double dx = ex - sx;
+        double dy = ey - sy;
+        double dz = ez - sz;
+        if (dx == 0.0 && dy == 0.0 && dz == 0.0) {
+            return 0.0;
+        }
+
+        double exitT = 1.0;
+        if (dx > 0.0) {
+            exitT = Math.min(exitT, (sourceBlock.getX() + 1.0 - sx) / dx);
+        } else if (dx < 0.0) {
+            exitT = Math.min(exitT, (sourceBlock.getX() - sx) / dx);
+        }
+        if (dy > 0.0) {
+            exitT = Math.min(exitT, (sourceBlock.getY() + 1.0 - sy) / dy);
+        } else if (dy < 0.0) {
+            exitT = Math.min(exitT, (sourceBlock.getY() - sy) / dy);
+        }
+        if (dz > 0.0) {
+            exitT = Math.min(exitT, (sourceBlock.getZ() + 1.0 - sz) / dz);
+        } else if (dz < 0.0) {
+            exitT = Math.min(exitT, (sourceBlock.getZ() - sz) / dz);
+        }
+
+        return Mth.clamp(exitT + 1.0e-7, 0.0, 1.0);
+    }
+}
@@ -0,0 +1,326 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import mcjty.hazardous.setup.Config;
+import mcjty.hazardous.util.QuadTree;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.levelgen.Heightmap;
+import net.minecraftforge.event.level.BlockEvent;
+import net.minecraftforge.event.level.ChunkEvent;
+import net.minecraftforge.event.level.LevelEvent;
+
+import java.util.*;
+
+/**
+ * Per section QuadTree of block transmission values (1 - absorption), kept per level and per absorption model.
+ * Rays cross uniform parts of a section (air, solid stone) with a single node test instead of one voxel at a time.
+ * Trees are built when a ray first enters a section and are updated with block change notifications.
+ * For sky hazards the cumulative transmission of block columns (from the surface down) is cached as well.
+ * Per level and model at most occlusionCacheSize trees and columns are kept, the least recently used are dropped
+ * first. The caches of a level are dropped as a whole when the hazard plan changes. Main thread only.
+ * <p>
+ * Changes are only seen through NeighborNotifyEvent, which is not fired for blocks set without neighbor updates
+ * (flag 2 only: /fill, structure placement, most world editors). Trees of such sections stay stale until they
+ * are evicted, their chunk unloads or a block in them is changed normally.
+ */
+public class OcclusionCache {
+
+    private static final Map<ResourceKey<Level>, OcclusionCache> LEVELS = new HashMap<>();
+
+    private final CompiledHazardPlan plan;
+    private final Map<AbsorptionModel, ModelCache> models = new IdentityHashMap<>();
+
+    private OcclusionCache(CompiledHazardPlan plan) {
+        this.plan = plan;
+    }
+
+    public static OcclusionCache get(Level level) {
+        CompiledHazardPlan plan = CompiledHazardPlan.get(level);
+        OcclusionCache cache = LEVELS.get(level.dimension());
+        if (cache == null || cache.plan != plan) {
+            cache = new OcclusionCache(plan);
+            LEVELS.put(level.dimension(), cache);
+        }
+        return cache;
+    }
+
+    public static void onNeighborNotify(BlockEvent.NeighborNotifyEvent event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            OcclusionCache cache = LEVELS.get(level.dimension());
+            if (cache == null) {
+                return;
+            }
+            if (cache.plan != CompiledHazardPlan.get(level)) {
+                // Built for an old plan, nothing will read these trees again
+                LEVELS.remove(level.dimension());
+                return;
+            }
+            for (ModelCache modelCache : cache.models.values()) {
+                modelCache.blockChanged(event.getPos(), event.getState());
+            }
+        }
+    }
+
+    public static void onChunkUnload(ChunkEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            OcclusionCache cache = LEVELS.get(level.dimension());
+            if (cache != null) {
+                ChunkPos pos = event.getChunk().getPos();
+                for (ModelCache modelCache : cache.models.values()) {
+                    modelCache.chunkUnloaded(level, pos);
+                }
+            }
+        }
+    }
+
+    public static void onLevelUnload(LevelEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel level) {
+            LEVELS.remove(level.dimension());
+        }
+    }
+
+    private ModelCache getModelCache(AbsorptionModel model) {
+        return models.computeIfAbsent(model, ModelCache::new);
+    }
+
+    /**
+     * Transmission of everything above endY in the column at (x, z).
+     */
+    public double skyFactor(ChunkCursor cursor, AbsorptionModel model, int x, int z, int endY, double cutoffFactor) {
+        if (cutoffFactor >= 1.0) {
+            return 0.0;
+        }
+        double factor = getModelCache(model).skyTransmission(cursor, x, z, endY);
+        return factor <= cutoffFactor ? 0.0 : factor;
+    }
+
+    /**
+     * Transmission of the line between two points. The voxels containing the end points don't absorb.
+     */
+    public double lineFactor(ChunkCursor cursor, AbsorptionModel model, double sx, double sy, double sz, double ex, double ey, double ez, double cutoffFactor) {
+        if (cutoffFactor >= 1.0) {
+            return 0.0;
+        }
+        int x = Mth.floor(sx);
+        int y = Mth.floor(sy);
+        int z = Mth.floor(sz);
+        int endX = Mth.floor(ex);
+        int endY = Mth.floor(ey);
+        int endZ = Mth.floor(ez);
+
+        if (x == endX && y == endY && z == endZ) {
+            return 1.0;
+        }
+
+        // Only look at the part of the segment between leaving the source voxel and entering the target voxel
+        double dx = ex - sx;
+        double dy = ey - sy;
+        double dz = ez - sz;
+        double tStart = Math.min(exitT(sx, dx, x), Math.min(exitT(sy, dy, y), exitT(sz, dz, z)));
+        double tEnd = Math.max(entryT(sx, dx, endX), Math.max(entryT(sy, dy, endY), entryT(sz, dz, endZ)));
+        if (tStart >= tEnd) {
+            return 1.0;
+        }
+        return getModelCache(model).transmission(cursor, sx, sy, sz, ex, ey, ez, tStart, tEnd, cutoffFactor);
+    }
+
+    private static double exitT(double s, double d, int voxel) {
+        if (d == 0.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return ((d > 0 ? voxel + 1.0 : voxel) - s) / d;
+    }
+
+    private static double entryT(double s, double d, int voxel) {
+        if (d == 0.0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return ((d > 0 ? voxel : voxel + 1.0) - s) / d;
+    }
+
+    // Trees and columns of one absorption model in this level
+    private static class ModelCache {
+        private final AbsorptionModel model;
+        // Access ordered: the first entry is the least recently used
+        private final Long2ObjectLinkedOpenHashMap<QuadTree> sections = new Long2ObjectLinkedOpenHashMap<>();
+        private final Long2ObjectLinkedOpenHashMap<Column> columns = new Long2ObjectLinkedOpenHashMap<>();
+        private final int maxSize = Config.OCCLUSION_CACHE_SIZE.get();
+
+        private ModelCache(AbsorptionModel model) {
+            this.model = model;
+        }
+
+        /**
+         * Transmission along the part [tMin, tMax] of the segment from (sx, sy, sz) to (ex, ey, ez).
+         * Returns 0 as soon as the segment enters an unloaded chunk or the transmission drops to 'cutoff' or below.
+         */
+        private double transmission(ChunkCursor cursor, double sx, double sy, double sz, double ex, double ey, double ez,
+                                    double tMin, double tMax, double cutoff) {
+            double dx = ex - sx;
+            double dy = ey - sy;
+            double dz = ez - sz;
+
+            // Walk the sections with a voxel walk on a 16 block grid
+            double t = tMin + 1.0e-7;
+            int x = SectionPos.blockToSectionCoord(Mth.floor(sx + dx * t));
+            int y = SectionPos.blockToSectionCoord(Mth.floor(sy + dy * t));
+            int z = SectionPos.blockToSectionCoord(Mth.floor(sz + dz * t));
+
+            int stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+            int stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+            int stepZ = dz > 0 ? 1 : (dz < 0 ? -1 : 0);
+
+            double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY : (SectionPos.sectionToBlockCoord(stepX > 0 ? x + 1 : x) - sx) / dx;
+            double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY : (SectionPos.sectionToBlockCoord(stepY > 0 ? y + 1 : y) - sy) / dy;
+            double tMaxZ = stepZ == 0 ? Double.POSITIVE_INFINITY : (SectionPos.sectionToBlockCoord(stepZ > 0 ? z + 1 : z) - sz) / dz;
+            double tDeltaX = stepX == 0 ? Double.POSITIVE_INFINITY : 16.0 / Math.abs(dx);
+            double tDeltaY = stepY == 0 ? Double.POSITIVE_INFINITY : 16.0 / Math.abs(dy);
+            double tDeltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : 16.0 / Math.abs(dz);
+
+            Level level = cursor.getLevel();
+            double factor = 1.0;
+            double tCurrent = tMin;
+            while (tCurrent < tMax) {
+                double tExit = Math.min(tMax, Math.min(tMaxX, Math.min(tMaxY, tMaxZ)));
+                if (y >= level.getMinSection() && y < level.getMaxSection()) {
+                    QuadTree tree = getTree(cursor, x, y, z);
+                    if (tree == null) {
+                        return 0.0;
+                    }
+                    factor *= tree.transmission(sx, sy, sz, dx, dy, dz, tCurrent, tExit);
+                    if (factor <= cutoff) {
+                        return 0.0;
+                    }
+                }
+                tCurrent = tExit;
+                if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
+                    x += stepX;
+                    tMaxX += tDeltaX;
+                } else if (tMaxY <= tMaxZ) {
+                    y += stepY;
+                    tMaxY += tDeltaY;
+                } else {
+                    z += stepZ;
+                    tMaxZ += tDeltaZ;
+                }
+            }
+            return factor;
+        }
+
+        /**
+         * Transmission of everything above endY in the column at (x, z). Returns 0 if the chunk is not loaded.
+         * The walk starts at the WORLD_SURFACE heightmap and is cached until a block in the column changes.
+         */
+        private double skyTransmission(ChunkCursor cursor, int x, int z, int endY) {
+            LevelChunk chunk = cursor.getChunk(SectionPos.blockToSectionCoord(x), SectionPos.blockToSectionCoord(z));
+            if (chunk == null) {
+                return 0.0;
+            }
+            long key = ChunkPos.asLong(x, z);
+            Column column = columns.getAndMoveToLast(key);
+            if (column == null) {
+                int top = chunk.getHeight(Heightmap.Types.WORLD_SURFACE, x & 15, z & 15);
+                column = new Column(top, new float[Math.max(0, top - cursor.getLevel().getMinBuildHeight() + 1)]);
+                columns.putAndMoveToLast(key, column);
+                if (columns.size() > maxSize) {
+                    columns.removeFirst();
+                }
+            }
+            if (endY >= column.top) {
+                return 1.0;
+            }
+            // Index i holds the transmission of all blocks from the top down to top - i
+            int index = Math.min(column.top - (endY + 1), column.transmission.length - 1);
+            while (column.filled <= index) {
+                int i = column.filled;
+                BlockState state = cursor.getBlockState(x, column.top - i, z);
+                if (state == null) {
+                    return 0.0;
+                }
+                float above = i == 0 ? 1.0f : column.transmission[i - 1];
+                column.transmission[i] = (float) (above * (1.0 - model.getAbsorption(state)));
+                column.filled++;
+            }
+            return index < 0 ? 1.0 : column.transmission[index];
+        }
+
+        private QuadTree getTree(ChunkCursor cursor, int sectionX, int sectionY, int sectionZ) {
+            long key = SectionPos.asLong(sectionX, sectionY, sectionZ);
+            QuadTree tree = sections.getAndMoveToLast(key);
+            if (tree == null) {
+                LevelChunkSection section = cursor.getSection(sectionX, sectionY, sectionZ);
+                if (section == null) {
+                    return null;
+                }
+                tree = buildTree(section, sectionX, sectionY, sectionZ);
+                sections.putAndMoveToLast(key, tree);
+                if (sections.size() > maxSize) {
+                    sections.removeFirst();
+                }
+            }
+            return tree;
+        }
+
+        private QuadTree buildTree(LevelChunkSection section, int sectionX, int sectionY, int sectionZ) {
+            int x0 = SectionPos.sectionToBlockCoord(sectionX);
+            int y0 = SectionPos.sectionToBlockCoord(sectionY);
+            int z0 = SectionPos.sectionToBlockCoord(sectionZ);
+            // Exact merging: a leaf must only cover voxels with exactly its value for transmission() to be correct
+            QuadTree tree = new QuadTree(x0, y0, z0, x0 + 16, y0 + 16, z0 + 16, 0.0f);
+            if (section.hasOnlyAir() || !section.maybeHas(state -> model.getAbsorption(state) > 0.0)) {
+                return tree;
+            }
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        double a = model.getAbsorption(section.getBlockState(x, y, z));
+                        if (a > 0.0) {
+                            tree.addBlocker(x0 + x, y0 + y, z0 + z, (float) (1.0 - a));
+                        }
+                    }
+                }
+            }
+            return tree;
+        }
+
+        private void blockChanged(BlockPos pos, BlockState state) {
+            columns.remove(ChunkPos.asLong(pos.getX(), pos.getZ()));
+            QuadTree tree = sections.get(SectionPos.asLong(pos));
+            if (tree != null) {
+                tree.addBlocker(pos, (float) (1.0 - model.getAbsorption(state)));
+            }
+        }
+
+        private void chunkUnloaded(Level level, ChunkPos pos) {
+            for (int x = pos.getMinBlockX(); x <= pos.getMaxBlockX(); x++) {
+                for (int z = pos.getMinBlockZ(); z <= pos.getMaxBlockZ(); z++) {
+                    columns.remove(ChunkPos.asLong(x, z));
+                }
+            }
+            for (int sy = level.getMinSection(); sy < level.getMaxSection(); sy++) {
+                sections.remove(SectionPos.asLong(pos.x, sy, pos.z));
+            }
+        }
+    }
+
+    // Cumulative transmission of a block column, filled lazily from the top down
+    private static class Column {
+        private final int top;
+        private final float[] transmission;
+        private int filled = 0;
+
+        private Column(int top, float[] transmission) {
+            this.top = top;
+            this.transmission = transmission;
+        }
+    }
+}
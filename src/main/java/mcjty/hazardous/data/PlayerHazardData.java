@@ -5,7 +5,9 @@ import com.mojang.serialization.Codec;
 import com.mojang.serialization.DataResult;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
 import mcjty.hazardous.Hazardous;
+import mcjty.hazardous.data.objects.HazardType;
 import mcjty.hazardous.setup.TimedAttributeEffects;
+import net.minecraft.core.Registry;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.NbtOps;
 import net.minecraft.nbt.Tag;
@@ -26,6 +28,13 @@ public class PlayerHazardData {
     private final Map<ResourceLocation, List<ResistancePillEffect>> resistancePills = new HashMap<>();
     private final Map<Attribute, List<TimedAttributeEffect>> timedAttributes = new HashMap<>();
 
+    // Runtime only (not saved) scheduling state per hazard type, indexed by the id of the type in the hazard type
+    // registry. Everything starts over when that registry changes (datapack reload)
+    private Registry<HazardType> timingRegistry = null;
+    private long[] lastApplicationTimes = new long[0];
+    private double[] lastExposures = new double[0];
+    private double[] lastExposureChanges = new double[0];
+
     private static final Codec<Map<ResourceLocation, Double>> DOSE_CODEC = Codec.unboundedMap(ResourceLocation.CODEC, Codec.DOUBLE);
     private static final Codec<Map<ResourceLocation, List<ResistancePillEffect>>> RESISTANCE_PILLS_CODEC =
             Codec.unboundedMap(ResourceLocation.CODEC, ResistancePillEffect.CODEC.listOf());
@@ -44,6 +53,54 @@ public class PlayerHazardData {
         }
     }
 
+    /**
+     * Game time of the last dose application for this hazard type or Long.MIN_VALUE if there was none yet.
+     */
+    public long getLastApplicationTime(Registry<HazardType> registry, int typeIndex) {
+        return ensureTiming(registry, typeIndex) ? lastApplicationTimes[typeIndex] : Long.MIN_VALUE;
+    }
+
+    public void setLastApplicationTime(Registry<HazardType> registry, int typeIndex, long gameTime) {
+        if (ensureTiming(registry, typeIndex)) {
+            lastApplicationTimes[typeIndex] = gameTime;
+        }
+    }
+
+    /**
+     * Effective exposure of the last dose application for this hazard type or NaN if there was none yet.
+     */
+    public double getLastExposure(Registry<HazardType> registry, int typeIndex) {
+        return ensureTiming(registry, typeIndex) ? lastExposures[typeIndex] : Double.NaN;
+    }
+
+    public double getLastExposureChange(Registry<HazardType> registry, int typeIndex) {
+        return ensureTiming(registry, typeIndex) ? lastExposureChanges[typeIndex] : 0.0;
+    }
+
+    public void setLastExposure(Registry<HazardType> registry, int typeIndex, double exposure) {
+        if (ensureTiming(registry, typeIndex)) {
+            double previous = lastExposures[typeIndex];
+            lastExposureChanges[typeIndex] = Double.isNaN(previous) ? 0.0 : exposure - previous;
+            lastExposures[typeIndex] = exposure;
+        }
+    }
+
+    private boolean ensureTiming(Registry<HazardType> registry, int typeIndex) {
+        if (typeIndex < 0) {
+            return false;
+        }
+        if (timingRegistry != registry || lastApplicationTimes.length != registry.size()) {
+            timingRegistry = registry;
+            int size = registry.size();
+            lastApplicationTimes = new long[size];
+            Arrays.fill(lastApplicationTimes, Long.MIN_VALUE);
+            lastExposures = new double[size];
+            Arrays.fill(lastExposures, Double.NaN);
+            lastExposureChanges = new double[size];
+        }
+        return typeIndex < lastApplicationTimes.length;
+    }
+
     public double removeDose(ResourceLocation hazardType, double amount) {
         if (amount <= 0.0) {
             return 0.0;
@@ -78,6 +135,10 @@ public class PlayerHazardData {
         oldStore.resistancePills.forEach((attributeId, effects) -> this.resistancePills.put(attributeId, new ArrayList<>(effects)));
         this.timedAttributes.clear();
         oldStore.timedAttributes.forEach((attribute, effects) -> this.timedAttributes.put(attribute, new ArrayList<>(effects)));
+        this.timingRegistry = oldStore.timingRegistry;
+        this.lastApplicationTimes = oldStore.lastApplicationTimes.clone();
+        this.lastExposures = oldStore.lastExposures.clone();
+        this.lastExposureChanges = oldStore.lastExposureChanges.clone();
     }
 
     public boolean addResistancePillEffect(ResourceLocation attributeId, double amount, long expiresAt, int maxStacks, long gameTime) {
@@ -0,0 +1,162 @@
+package mcjty.hazardous.data;
+
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.core.BlockPos;
+
+/**
+ * Octree over the block positions of one point source. Groups of positions that are small compared to their
+ * distance from the observer (size / distance below the opening angle) are visited as a single source at their
+ * center with the number of positions as weight (Barnes-Hut). Other groups are opened up to single positions.
+ * A tree is built once (per source or per chunk and source) and can then be visited from any observer.
+ */
+public class SourceOctree {
+
+    private final Node root;
+
+    public interface Visitor {
+        /**
+         * @param x     center of the visited positions (block centers)
+         * @param count number of positions in the group
+         * @param pos   the packed position if count is 1
+         */
+        void visit(double x, double y, double z, int count, long pos);
+    }
+
+    private static class Node {
+        private final int count;
+        private final double centerX;
+        private final double centerY;
+        private final double centerZ;
+        // The cube this node covers
+        private final int minX;
+        private final int minY;
+        private final int minZ;
+        private final int size;
+        private final long pos;
+        private final Node[] children;
+
+        private Node(int count, double centerX, double centerY, double centerZ, int minX, int minY, int minZ, int size, long pos, Node[] children) {
+            this.count = count;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.centerZ = centerZ;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.size = size;
+            this.pos = pos;
+            this.children = children;
+        }
+    }
+
+    private SourceOctree(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param positions packed block positions (see BlockPos.asLong), must not be empty. Duplicates end up in the same
+     *                  leaf and count as separate positions
+     */
+    public static SourceOctree build(LongList positions) {
+        long[] array = positions.toLongArray();
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxExtent = 0;
+        for (long pos : array) {
+            minX = Math.min(minX, BlockPos.getX(pos));
+            minY = Math.min(minY, BlockPos.getY(pos));
+            minZ = Math.min(minZ, BlockPos.getZ(pos));
+        }
+        for (long pos : array) {
+            maxExtent = Math.max(maxExtent, Math.max(BlockPos.getX(pos) - minX, Math.max(BlockPos.getY(pos) - minY, BlockPos.getZ(pos) - minZ)));
+        }
+        int size = 1;
+        while (size <= maxExtent) {
+            size *= 2;
+        }
+        return new SourceOctree(build(array, new long[array.length], 0, array.length, minX, minY, minZ, size));
+    }
+
+    // Build the node for positions[from, to). The range is sorted per octant in place, 'scratch' is shared
+    private static Node build(long[] positions, long[] scratch, int from, int to, int minX, int minY, int minZ, int size) {
+        double sumX = 0;
+        double sumY = 0;
+        double sumZ = 0;
+        for (int i = from; i < to; i++) {
+            sumX += BlockPos.getX(positions[i]) + 0.5;
+            sumY += BlockPos.getY(positions[i]) + 0.5;
+            sumZ += BlockPos.getZ(positions[i]) + 0.5;
+        }
+        int count = to - from;
+        if (count == 1 || size == 1) {
+            return new Node(count, sumX / count, sumY / count, sumZ / count, minX, minY, minZ, size, positions[from], null);
+        }
+        int half = size / 2;
+        int[] starts = new int[9];
+        for (int i = from; i < to; i++) {
+            starts[octant(positions[i], minX, minY, minZ, half) + 1]++;
+        }
+        for (int i = 0; i < 8; i++) {
+            starts[i + 1] += starts[i];
+        }
+        int[] next = new int[8];
+        System.arraycopy(starts, 0, next, 0, 8);
+        for (int i = from; i < to; i++) {
+            scratch[from + next[octant(positions[i], minX, minY, minZ, half)]++] = positions[i];
+        }
+        System.arraycopy(scratch, from, positions, from, count);
+
+        Node[] children = new Node[8];
+        for (int i = 0; i < 8; i++) {
+            if (starts[i + 1] > starts[i]) {
+                children[i] = build(positions, scratch, from + starts[i], from + starts[i + 1],
+                        minX + ((i & 1) != 0 ? half : 0), minY + ((i & 2) != 0 ? half : 0), minZ + ((i & 4) != 0 ? half : 0), half);
+            }
+        }
+        return new Node(count, sumX / count, sumY / count, sumZ / count, minX, minY, minZ, size, 0L, children);
+    }
+
+    private static int octant(long pos, int minX, int minY, int minZ, int half) {
+        return (BlockPos.getX(pos) - minX >= half ? 1 : 0)
+                | (BlockPos.getY(pos) - minY >= half ? 2 : 0)
+                | (BlockPos.getZ(pos) - minZ >= half ? 4 : 0);
+    }
+
+    /**
+     * Visit the tree as seen from the given observer position. Groups that are completely farther away than
+     * maxDistance are skipped.
+     */
+    public void visit(double x, double y, double z, double openingAngle, double maxDistance, Visitor visitor) {
+        visit(root, x, y, z, openingAngle * openingAngle, maxDistance * maxDistance, visitor);
+    }
+
+    private static void visit(Node node, double x, double y, double z, double openingAngleSq, double maxDistanceSq, Visitor visitor) {
+        if (distanceSqToBox(node, x, y, z) > maxDistanceSq) {
+            return;
+        }
+        if (node.children == null) {
+            visitor.visit(node.centerX, node.centerY, node.centerZ, node.count, node.pos);
+            return;
+        }
+        double dx = node.centerX - x;
+        double dy = node.centerY - y;
+        double dz = node.centerZ - z;
+        if ((double) node.size * node.size < openingAngleSq * (dx * dx + dy * dy + dz * dz)) {
+            visitor.visit(node.centerX, node.centerY, node.centerZ, node.count, 0L);
+            return;
+        }
+        for (Node child : node.children) {
+            if (child != null) {
+                visit(child, x, y, z, openingAngleSq, maxDistanceSq, visitor);
+            }
+        }
+    }
+
+    private static double distanceSqToBox(Node node, double x, double y, double z) {
+        double dx = Math.max(0.0, Math.max(node.minX - x, x - (node.minX + node.size)));
+        double dy = Math.max(0.0, Math.max(node.minY - y, y - (node.minY + node.size)));
+        double dz = Math.max(0.0, Math.max(node.minZ - z, z - (node.minZ + node.size)));
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
@@ -1,6 +1,7 @@
 package mcjty.hazardous.setup;
 
 import mcjty.hazardous.Hazardous;
+import mcjty.hazardous.data.CompiledHazardPlan;
 import net.minecraft.resources.ResourceLocation;
 import net.minecraftforge.common.ForgeConfigSpec;
 import net.minecraftforge.fml.ModLoadingContext;
@@ -21,6 +22,18 @@ public class Config {
     public static ForgeConfigSpec.ConfigValue<List<? extends String>> ENABLED_HAZARD_TYPES;
     public static ForgeConfigSpec.ConfigValue<List<? extends String>> ENABLED_HAZARD_SOURCES;
     public static ForgeConfigSpec.IntValue PLAYER_TICK_WORK_INTERVAL;
+    public static ForgeConfigSpec.DoubleValue HAZARD_TICK_BUDGET_MS;
+    public static ForgeConfigSpec.IntValue EXPOSURE_CACHE_MAX_AGE;
+    public static ForgeConfigSpec.IntValue EXPOSURE_CACHE_DYNAMIC_MAX_AGE;
+    public static ForgeConfigSpec.DoubleValue FALLOFF_TABLE_TOLERANCE;
+    public static ForgeConfigSpec.DoubleValue CLUSTER_OPENING_ANGLE;
+    public static ForgeConfigSpec.BooleanValue HAZARD_FIELD_MODE;
+    public static ForgeConfigSpec.BooleanValue HAZARD_PROPAGATION;
+    public static ForgeConfigSpec.IntValue HAZARD_PROPAGATION_RADIUS;
+    public static ForgeConfigSpec.IntValue HAZARD_PROPAGATION_SECTIONS_PER_TICK;
+    public static ForgeConfigSpec.IntValue OCCLUSION_CACHE_SIZE;
+    public static ForgeConfigSpec.BooleanValue ASYNC_EVALUATION;
+    public static ForgeConfigSpec.IntValue ASYNC_WORKER_THREADS;
     public static ForgeConfigSpec.ConfigValue<String> GASMASK_PROTECTED_TYPE;
     public static ForgeConfigSpec.DoubleValue GASMASK_PROTECTION_LEVEL;
     public static ForgeConfigSpec.IntValue GASMASK_FILTER_RESTORE;
@@ -84,6 +97,42 @@ public class Config {
         PLAYER_TICK_WORK_INTERVAL = builder
                 .comment("Only run the expensive player hazard calculation once every N server ticks")
                 .defineInRange("playerTickWorkInterval", 5, 1, 20 * 60);
+        HAZARD_TICK_BUDGET_MS = builder
+                .comment("If greater than 0, player hazard work is scheduled by priority within this many milliseconds per server tick instead of using playerTickWorkInterval. Late players catch up on the dose they missed")
+                .defineInRange("hazardTickBudgetMs", 0.0, 0.0, 50.0);
+        EXPOSURE_CACHE_MAX_AGE = builder
+                .comment("Maximum age in ticks of a cached hazard source contribution. Cached values are reused while the player stays in the same block and no blocks in range change. Set to 0 to disable the cache")
+                .defineInRange("exposureCacheMaxAge", 200, 0, 20 * 60 * 10);
+        EXPOSURE_CACHE_DYNAMIC_MAX_AGE = builder
+                .comment("Maximum age in ticks of a cached contribution of a source that depends on entities, players, time or weather")
+                .defineInRange("exposureCacheDynamicMaxAge", 20, 0, 20 * 60 * 10);
+        FALLOFF_TABLE_TOLERANCE = builder
+                .comment("Maximum relative error allowed when the intensity of block and location point sources is looked up in a precomputed table instead of computed exactly. Set to 0 to always compute exactly")
+                .defineInRange("falloffTableTolerance", 0.001, 0.0, 0.1);
+        CLUSTER_OPENING_ANGLE = builder
+                .comment("If greater than 0, groups of block or location source positions whose size divided by their distance is below this value are evaluated as one source (Barnes-Hut). Higher is faster but less accurate, 0.5 is a good start. Set to 0 to evaluate every position")
+                .defineInRange("clusterOpeningAngle", 0.0, 0.0, 2.0);
+        HAZARD_FIELD_MODE = builder
+                .comment("If true, the exposure to block, location and city point sources is sampled on a grid with one sample every 4 blocks and interpolated for players. Samples are only computed again when blocks in range change. Faster with many sources, but less precise")
+                .define("hazardFieldMode", false);
+        HAZARD_PROPAGATION = builder
+                .comment("If true, block point sources spread their intensity through the world like light (on worker threads) and players only look up the result. Where floods of several blocks overlap the strongest one counts. Only used for sources whose range is at most hazardPropagationRadius")
+                .define("hazardPropagation", false);
+        HAZARD_PROPAGATION_RADIUS = builder
+                .comment("Largest range (in blocks) of a block source that is handled by hazardPropagation. Memory use grows with the volume reached by all emitting blocks together")
+                .defineInRange("hazardPropagationRadius", 16, 1, 32);
+        HAZARD_PROPAGATION_SECTIONS_PER_TICK = builder
+                .comment("Maximum number of chunk sections copied for hazardPropagation per tick and dimension. Emitters that need more sections are completed on later ticks")
+                .defineInRange("hazardPropagationSectionsPerTick", 64, 1, 4096);
+        OCCLUSION_CACHE_SIZE = builder
+                .comment("Maximum number of chunk sections (and sky columns) for which absorption occlusion is cached, per dimension and absorption model. The least recently used are dropped first")
+                .defineInRange("occlusionCacheSize", 4096, 64, 1_000_000);
+        ASYNC_EVALUATION = builder
+                .comment("If true, the blocking of point hazard sources is traced on worker threads using a copy of the blocks involved. Results are applied one or more ticks later")
+                .define("asyncEvaluation", false);
+        ASYNC_WORKER_THREADS = builder
+                .comment("Number of worker threads used when asyncEvaluation is enabled")
+                .defineInRange("asyncWorkerThreads", 2, 1, 16);
         GASMASK_PROTECTED_TYPE = builder
                 .comment("Hazard type id the gasmask protects against. Leave empty to disable protection")
                 .define("gasmaskProtectedType", Hazardous.MODID + ":radioactive_type");
@@ -280,6 +329,7 @@ public class Config {
         }
         enabledHazardTypes = null;
         enabledHazardSources = null;
+        CompiledHazardPlan.invalidate();
     }
 
     public static Optional<ResourceLocation> getGeigerDisplayHazardType() {
@@ -1,155 +1,235 @@
 package mcjty.hazardous.util;
 
 import net.minecraft.core.BlockPos;
-import net.minecraft.world.phys.Vec3;
 
+import java.util.Arrays;
+
+/**
+ * Binary space partition of blocker values (0.0 is blocked, 1.0 is transparent).
+ * Nodes are stored in flat arrays and children are always allocated in pairs (child2 = child1 + 1).
+ * Queries don't allocate. A tree is not thread safe.
+ */
 public class QuadTree {
 
-    private final SimpleAABB box;
-    private QuadTree child1;
-    private QuadTree child2;
-    private float blocker = 1.0f;      // 0.0 is blocked, 1.0 is transparent
+    private static final double EPSILON = 1.0e-7;
+    private static final int LEAF = -1;
+
+    // Six ints per node: minX, minY, minZ, maxX, maxY, maxZ
+    private int[] boxes;
+    // Index of child1 or LEAF
+    private int[] children;
+    // Blocker value for leaves, -1 for nodes
+    private float[] blockers;
+    private int nodeCount = 0;
+
+    // Freed child pairs (index of child1) that can be reused
+    private int[] freePairs = new int[8];
+    private int freeCount = 0;
+
+    private int[] stack = new int[64];
+
+    // Sibling leaves whose blockers differ less than this are merged. 0 only merges equal blockers
+    private final float mergeTolerance;
 
     public QuadTree(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
-        box = SimpleAABB.get(minX, minY, minZ, maxX, maxY, maxZ);
+        this(minX, minY, minZ, maxX, maxY, maxZ, 0.01f);
     }
 
-    public void addBlocker(int x, int y, int z, float blocker) {
-        addBlocker(new BlockPos(x, y, z), blocker);
+    /**
+     * @param mergeTolerance sibling leaves with blockers closer than this are merged. Use 0 when transmission()
+     *                       has to give exactly the same result as walking the voxels one by one
+     */
+    public QuadTree(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, float mergeTolerance) {
+        this.mergeTolerance = mergeTolerance;
+        boxes = new int[6 * 16];
+        children = new int[16];
+        blockers = new float[16];
+        int root = allocate(1);
+        setNode(root, minX, minY, minZ, maxX, maxY, maxZ, 1.0f);
     }
 
-    // Return -1 if blockers inside this are different. Otherwise blocker value.
-    public float addBlocker(BlockPos coordinate, float blocker) {
-        if (child1 != null) {
-            if (child1.box.isVecInside(coordinate)) {
-                float b = child1.addBlocker(coordinate, blocker);
-                if (child2.blocker >= 0.0 && Math.abs(b - child2.blocker) < 0.01) {
-                    // Blockers are almost the same. Optimize
-                    this.blocker = b;
-                    this.child1 = null;
-                    this.child2 = null;
-                    return b;
-                }
-                this.blocker = -1;
-                return -1;
-            } else if (child2.box.isVecInside(coordinate)) {
-                float b = child2.addBlocker(coordinate, blocker);
-                if (child1.blocker >= 0.0 && Math.abs(b - child1.blocker) < 0.01) {
-                    // Blockers are almost the same. Optimize
-                    this.blocker = b;
-                    this.child1 = null;
-                    this.child2 = null;
-                    return b;
+    public void addBlocker(int x, int y, int z, float blocker) {
+        if (!isInside(0, x, y, z)) {
+            return;
+        }
+        // Descend to the leaf containing the coordinate, splitting leaves until they are a single voxel
+        int depth = 0;
+        int node = 0;
+        while (true) {
+            stack = push(stack, depth++, node);
+            int child = children[node];
+            if (child == LEAF) {
+                if (!split(node)) {
+                    blockers[node] = blocker;
+                    break;
                 }
-                this.blocker = -1;
-                return -1;
-            } else {
-                System.out.println("Impossible! Point " + coordinate + " is not in either box!");
-                System.out.println("    child1.box = " + child1.box);
-                System.out.println("    child2.box = " + child2.box);
-                this.blocker = -1;
-                return -1;
-            }
-        } else {
-            int lx = box.maxX() - box.minX();
-            int ly = box.maxY() - box.minY();
-            int lz = box.maxZ() - box.minZ();
-            int largest;
-            int axis;
-            if (lx >= ly && lx >= lz) {
-                largest = lx;
-                axis = 0;
-            } else if (ly >= lz) {
-                largest = ly;
-                axis = 1;
-            } else {
-                largest = lz;
-                axis = 2;
+                child = children[node];
             }
-            if (largest > 1) {
-                switch (axis) {
-                    case 0 -> {
-                        int middle = (box.maxX() + box.minX()) / 2;
-                        child1 = new QuadTree(box.minX(), box.minY(), box.minZ(), middle, box.maxY(), box.maxZ());
-                        child2 = new QuadTree(middle, box.minY(), box.minZ(), box.maxX(), box.maxY(), box.maxZ());
-                    }
-                    case 1 -> {
-                        int middle = (box.maxY() + box.minY()) / 2;
-                        child1 = new QuadTree(box.minX(), box.minY(), box.minZ(), box.maxX(), middle, box.maxZ());
-                        child2 = new QuadTree(box.minX(), middle, box.minZ(), box.maxX(), box.maxY(), box.maxZ());
-                    }
-                    case 2 -> {
-                        int middle = (box.maxZ() + box.minZ()) / 2;
-                        child1 = new QuadTree(box.minX(), box.minY(), box.minZ(), box.maxX(), box.maxY(), middle);
-                        child2 = new QuadTree(box.minX(), box.minY(), middle, box.maxX(), box.maxY(), box.maxZ());
-                    }
-                }
-                child1.blocker = this.blocker;
-                child2.blocker = this.blocker;
-                this.blocker = -1;
-                return addBlocker(coordinate, blocker);
+            node = isInside(child, x, y, z) ? child : child + 1;
+        }
+
+        // Go back up and merge children that ended up (almost) the same
+        for (int i = depth - 2; i >= 0; i--) {
+            int parent = stack[i];
+            int child = stack[i + 1];
+            int sibling = (child == children[parent]) ? child + 1 : child - 1;
+            float b = blockers[child];
+            if (blockers[sibling] >= 0.0 && (b == blockers[sibling] || Math.abs(b - blockers[sibling]) < mergeTolerance)) {
+                // Blockers are (almost) the same. Optimize
+                release(children[parent]);
+                children[parent] = LEAF;
+                blockers[parent] = b;
             } else {
-                // Don't split.
-                this.blocker = blocker;
-                return blocker;
+                blockers[parent] = -1;
             }
         }
     }
 
+    // Return -1 if blockers inside this are different. Otherwise blocker value.
+    public float addBlocker(BlockPos coordinate, float blocker) {
+        addBlocker(coordinate.getX(), coordinate.getY(), coordinate.getZ(), blocker);
+        return blockers[0];
+    }
 
     public double factor(int x1, int y1, int z1, int x2, int y2, int z2) {
-        Vec3 p1 = new Vec3(x1 + .5, y1 + .5, z1 + .5);
-        Vec3 p2 = new Vec3(x2 + .5, y2 + .5, z2 + .5);
-        return factor(new Ray(p1, p2));
+        return factor(x1 + .5, y1 + .5, z1 + .5, x2 + .5, y2 + .5, z2 + .5);
     }
 
     public double factor(double x1, double y1, double z1, double x2, double y2, double z2) {
-        Vec3 p1 = new Vec3(x1, y1, z1);
-        Vec3 p2 = new Vec3(x2, y2, z2);
-        return factor(new Ray(p1, p2));
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        double dz = z2 - z1;
+        double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        // Same as Vec3.normalize()
+        if (length < 1.0E-4) {
+            dx = 0.0;
+            dy = 0.0;
+            dz = 0.0;
+        } else {
+            dx /= length;
+            dy /= length;
+            dz /= length;
+        }
+        double invX = 1.0 / dx;
+        double invY = 1.0 / dy;
+        double invZ = 1.0 / dz;
+
+        double factor = 1.0;
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            int child = children[node];
+            if (child == LEAF) {
+                factor *= blockers[node];
+                continue;
+            }
+            // Push child2 first so child1 is handled first, like the recursive version
+            if (testIntersect(child + 1, x1, y1, z1, invX, invY, invZ, length)) {
+                stack = push(stack, sp++, child + 1);
+            }
+            if (testIntersect(child, x1, y1, z1, invX, invY, invZ, length)) {
+                stack = push(stack, sp++, child);
+            }
+        }
+        return factor;
     }
 
     // Calculate radiation for a 2-high character
     public double factor2(int x1, int y1, int z1, int x2, int y2, int z2) {
-        Vec3 p1 = new Vec3(x1 + .5, y1 + .5, z1 + .5);
-        Vec3 p2 = new Vec3(x2 + .5, y2 + .5, z2 + .5);
-        double f1 = factor(new Ray(p1, p2));
-        Vec3 p3 = new Vec3(x2 + .5, y2 + 1.1, z2 + .5);
-        double f2 = factor(new Ray(p1, p3));
+        double f1 = factor(x1 + .5, y1 + .5, z1 + .5, x2 + .5, y2 + .5, z2 + .5);
+        double f2 = factor(x1 + .5, y1 + .5, z1 + .5, x2 + .5, y2 + 1.1, z2 + .5);
         return Math.max(f1, f2);
     }
 
-    private double factor(Ray ray) {
-        if (child1 != null) {
-            double factor = 1.0;
-            if (testIntersect(child1.box, ray)) {
-                factor *= child1.factor(ray);
+    /**
+     * Transmission along the part [tMin, tMax] of the segment start + t * dir. Unlike factor() every leaf is
+     * counted once per voxel the segment crosses, so a uniform leaf of any size gives the same result as
+     * walking its voxels one by one. That is only exact for trees with a merge tolerance of 0.
+     */
+    public double transmission(double sx, double sy, double sz, double dx, double dy, double dz, double tMin, double tMax) {
+        double factor = 1.0;
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            int b = node * 6;
+            double t0 = tMin;
+            double t1 = tMax;
+            if (dx == 0.0) {
+                if (sx < boxes[b] || sx >= boxes[b + 3]) {
+                    continue;
+                }
+            } else {
+                double ta = (boxes[b] - sx) / dx;
+                double tb = (boxes[b + 3] - sx) / dx;
+                t0 = Math.max(t0, Math.min(ta, tb));
+                t1 = Math.min(t1, Math.max(ta, tb));
             }
-            if (testIntersect(child2.box, ray)) {
-                factor *= child2.factor(ray);
+            if (dy == 0.0) {
+                if (sy < boxes[b + 1] || sy >= boxes[b + 4]) {
+                    continue;
+                }
+            } else {
+                double ta = (boxes[b + 1] - sy) / dy;
+                double tb = (boxes[b + 4] - sy) / dy;
+                t0 = Math.max(t0, Math.min(ta, tb));
+                t1 = Math.min(t1, Math.max(ta, tb));
             }
-            return factor;
-        } else {
-            return blocker;
+            if (dz == 0.0) {
+                if (sz < boxes[b + 2] || sz >= boxes[b + 5]) {
+                    continue;
+                }
+            } else {
+                double ta = (boxes[b + 2] - sz) / dz;
+                double tb = (boxes[b + 5] - sz) / dz;
+                t0 = Math.max(t0, Math.min(ta, tb));
+                t1 = Math.min(t1, Math.max(ta, tb));
+            }
+            if (t1 - t0 <= 2 * EPSILON) {
+                continue;
+            }
+            int child = children[node];
+            if (child != LEAF) {
+                stack = push(stack, sp++, child + 1);
+                stack = push(stack, sp++, child);
+                continue;
+            }
+            float blocker = blockers[node];
+            if (blocker >= 1.0f) {
+                continue;
+            }
+            if (blocker <= 0.0f) {
+                return 0.0;
+            }
+            factor *= Math.pow(blocker, countVoxels(sx, sy, sz, dx, dy, dz, t0 + EPSILON, t1 - EPSILON));
         }
+        return factor;
+    }
+
+    // Number of voxels visited by a voxel walk from t0 to t1
+    private static int countVoxels(double sx, double sy, double sz, double dx, double dy, double dz, double t0, double t1) {
+        return 1 + Math.abs((int) Math.floor(sx + dx * t1) - (int) Math.floor(sx + dx * t0))
+                + Math.abs((int) Math.floor(sy + dy * t1) - (int) Math.floor(sy + dy * t0))
+                + Math.abs((int) Math.floor(sz + dz * t1) - (int) Math.floor(sz + dz * t0));
     }
 
-    private static boolean testIntersect(SimpleAABB box, Ray ray) {
-        Vec3 invDir = ray.getInvDir();
+    private boolean testIntersect(int node, double sx, double sy, double sz, double invX, double invY, double invZ, double length) {
+        int b = node * 6;
 
-        boolean signDirX = invDir.x < 0;
-        boolean signDirY = invDir.y < 0;
-        boolean signDirZ = invDir.z < 0;
+        boolean signDirX = invX < 0;
+        boolean signDirY = invY < 0;
+        boolean signDirZ = invZ < 0;
 
-        double v = signDirX ? box.maxX() : box.minX();
-        double tmin = (v - ray.getStart().x) * invDir.x;
-        v = signDirX ? box.minX() : box.maxX();
-        double tmax = (v - ray.getStart().x) * invDir.x;
+        double v = signDirX ? boxes[b + 3] : boxes[b];
+        double tmin = (v - sx) * invX;
+        v = signDirX ? boxes[b] : boxes[b + 3];
+        double tmax = (v - sx) * invX;
 
-        v = signDirY ? box.maxY() : box.minY();
-        double tymin = (v - ray.getStart().y) * invDir.y;
-        v = signDirY ? box.minY() : box.maxY();
-        double tymax = (v - ray.getStart().y) * invDir.y;
+        v = signDirY ? boxes[b + 4] : boxes[b + 1];
+        double tymin = (v - sy) * invY;
+        v = signDirY ? boxes[b + 1] : boxes[b + 4];
+        double tymax = (v - sy) * invY;
 
         if ((tmin > tymax) || (tymin > tmax)) {
             return false;
@@ -161,10 +241,10 @@ public class QuadTree {
             tmax = tymax;
         }
 
-        v = signDirZ ? box.maxZ() : box.minZ();
-        double tzmin = (v - ray.getStart().z) * invDir.z;
-        v = signDirZ ? box.minZ() : box.maxZ();
-        double tzmax = (v - ray.getStart().z) * invDir.z;
+        v = signDirZ ? boxes[b + 5] : boxes[b + 2];
+        double tzmin = (v - sz) * invZ;
+        v = signDirZ ? boxes[b + 2] : boxes[b + 5];
+        double tzmax = (v - sz) * invZ;
 
         if ((tmin > tzmax) || (tzmin > tmax)) {
             return false;
@@ -175,94 +255,87 @@ public class QuadTree {
         if (tzmax < tmax) {
             tmax = tzmax;
         }
-        return (tmin < ray.getLength()) && (tmax > 0.01);
+        return (tmin < length) && (tmax > 0.01);
     }
 
-    private void dump(int indent) {
-        if (child1 == null) {
-            System.out.println("                                                                     ".substring(0, indent) + "Leaf: " + box + ", blocker=" + blocker);
-        } else {
-            System.out.println("                                                                     ".substring(0, indent) + "Node: " + box);
-            child1.dump(indent + 2);
-            child2.dump(indent + 2);
+    // Split a leaf along its largest axis. Returns false if the leaf is a single voxel along every axis
+    private boolean split(int node) {
+        int b = node * 6;
+        int minX = boxes[b], minY = boxes[b + 1], minZ = boxes[b + 2];
+        int maxX = boxes[b + 3], maxY = boxes[b + 4], maxZ = boxes[b + 5];
+        int lx = maxX - minX;
+        int ly = maxY - minY;
+        int lz = maxZ - minZ;
+        if (lx <= 1 && ly <= 1 && lz <= 1) {
+            return false;
         }
-    }
-
-    private int treeSize() {
-        if (child1 == null) {
-            return 1;
+        float blocker = blockers[node];
+        int child = allocate(2);
+        if (lx >= ly && lx >= lz) {
+            int middle = (maxX + minX) / 2;
+            setNode(child, minX, minY, minZ, middle, maxY, maxZ, blocker);
+            setNode(child + 1, middle, minY, minZ, maxX, maxY, maxZ, blocker);
+        } else if (ly >= lz) {
+            int middle = (maxY + minY) / 2;
+            setNode(child, minX, minY, minZ, maxX, middle, maxZ, blocker);
+            setNode(child + 1, minX, middle, minZ, maxX, maxY, maxZ, blocker);
         } else {
-            return 1 + child1.treeSize() + child2.treeSize();
+            int middle = (maxZ + minZ) / 2;
+            setNode(child, minX, minY, minZ, maxX, maxY, middle, blocker);
+            setNode(child + 1, minX, minY, middle, maxX, maxY, maxZ, blocker);
         }
+        children[node] = child;
+        blockers[node] = -1;
+        return true;
     }
 
-    private static class Ray {
-
-        private final Vec3 start;
-        private final Vec3 dir;
-        private final Vec3 invDir;
-        private final double length;
-
-        public Ray(Vec3 start, Vec3 end) {
-            this.start = start;
-            Vec3 dir = end.subtract(start);
-            length = dir.length();
-            this.dir = dir.normalize();
-            this.invDir = new Vec3(1.0 / this.dir.x, 1.0 / this.dir.y, 1.0 / this.dir.z);
-        }
-
-        public Vec3 getDir() {
-            return dir;
-        }
+    private boolean isInside(int node, int x, int y, int z) {
+        int b = node * 6;
+        return x >= boxes[b] && x < boxes[b + 3] && y >= boxes[b + 1] && y < boxes[b + 4] && z >= boxes[b + 2] && z < boxes[b + 5];
+    }
 
-        public Vec3 getInvDir() {
-            return invDir;
-        }
+    private void setNode(int node, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, float blocker) {
+        int b = node * 6;
+        boxes[b] = minX;
+        boxes[b + 1] = minY;
+        boxes[b + 2] = minZ;
+        boxes[b + 3] = maxX;
+        boxes[b + 4] = maxY;
+        boxes[b + 5] = maxZ;
+        children[node] = LEAF;
+        blockers[node] = blocker;
+    }
 
-        public Vec3 getStart() {
-            return start;
+    private int allocate(int count) {
+        if (count == 2 && freeCount > 0) {
+            return freePairs[--freeCount];
         }
-
-        public double getLength() {
-            return length;
+        int index = nodeCount;
+        nodeCount += count;
+        if (nodeCount > children.length) {
+            int capacity = Math.max(nodeCount, children.length * 2);
+            boxes = Arrays.copyOf(boxes, capacity * 6);
+            children = Arrays.copyOf(children, capacity);
+            blockers = Arrays.copyOf(blockers, capacity);
         }
-
+        return index;
     }
 
-
-    public static void main(String[] args) {
-        int dim = 100;
-        QuadTree tree = new QuadTree(0, 0, 0, dim, dim, dim);
-        for (int y = 0; y <= 5; y++) {
-            for (int z = 0; z <= dim; z++) {
-                tree.addBlocker(3, y, z, 0.5f);
-                tree.addBlocker(20, y, z, 0.5f);
-                tree.addBlocker(21, y, z, 0.5f);
+    // Free a pair of children and everything below them
+    private void release(int pair) {
+        for (int node = pair; node <= pair + 1; node++) {
+            if (children[node] != LEAF) {
+                release(children[node]);
             }
         }
+        freePairs = push(freePairs, freeCount++, pair);
+    }
 
-        System.out.println("Twice Blocked: " + tree.factor(1, 3, 3, 40, 3, 3));
-        System.out.println("Once Blocked: " + tree.factor(1, 3, 3, 10, 3, 3));
-        System.out.println("Not Blocked: " + tree.factor(1, 7, 3, 8, 7, 3));
-
-        System.out.println("tree.treeSize() = " + tree.treeSize());
-
-        for (int y = 0; y <= 5; y++) {
-            for (int z = 0; z <= dim; z++) {
-                tree.addBlocker(3, y, z, 0.5f);
-                tree.addBlocker(20, y, z, 1.0f);
-                tree.addBlocker(21, y, z, 0.5f);
-            }
+    private static int[] push(int[] array, int index, int value) {
+        if (index >= array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
         }
-
-        System.out.println("Twice Blocked: " + tree.factor(1, 3, 3, 40, 3, 3));
-        System.out.println("Once Blocked: " + tree.factor(1, 3, 3, 10, 3, 3));
-        System.out.println("Not Blocked: " + tree.factor(1, 7, 3, 8, 7, 3));
-
-
-        System.out.println("tree.treeSize() = " + tree.treeSize());
-
-//        tree.dump(0);
+        array[index] = value;
+        return array;
     }
-
 }
@@ -0,0 +1,27 @@
+package mcjty.hazardous.util;
+
+/**
+ * Rough timing of the QuadTree query path. Not a test, run the main method by hand.
+ */
+public class QuadTreeBenchmark {
+
+    public static void main(String[] args) {
+        int dim = 100;
+        QuadTree tree = new QuadTree(0, 0, 0, dim, dim, dim);
+        for (int y = 0; y <= 5; y++) {
+            for (int z = 0; z <= dim; z++) {
+                tree.addBlocker(3, y, z, 0.5f);
+                tree.addBlocker(21, y, z, 0.5f);
+            }
+        }
+
+        int queries = 1_000_000;
+        double sum = 0.0;
+        long start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            sum += tree.factor2(i % dim, 3, (i / dim) % dim, dim - 1 - (i % dim), 4, (i / 7) % dim);
+        }
+        long time = System.nanoTime() - start;
+        System.out.println("factor2: " + (time / queries) + "ns/query (checksum " + sum + ")");
+    }
+}
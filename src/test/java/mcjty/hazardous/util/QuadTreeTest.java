@@ -0,0 +1,96 @@
+package mcjty.hazardous.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class QuadTreeTest {
+
+    @Test
+    public void factorCountsEveryBlocker() {
+        QuadTree tree = new QuadTree(0, 0, 0, 100, 100, 100);
+        for (int y = 0; y <= 5; y++) {
+            for (int z = 0; z <= 100; z++) {
+                tree.addBlocker(3, y, z, 0.5f);
+                tree.addBlocker(20, y, z, 0.5f);
+                tree.addBlocker(21, y, z, 0.5f);
+            }
+        }
+        assertEquals(0.125, tree.factor(1, 3, 3, 40, 3, 3), 1.0e-6);
+        assertEquals(0.5, tree.factor(1, 3, 3, 10, 3, 3), 1.0e-6);
+        assertEquals(1.0, tree.factor(1, 7, 3, 8, 7, 3), 1.0e-6);
+
+        // Clearing a blocker splits the merged leaves again
+        for (int y = 0; y <= 5; y++) {
+            for (int z = 0; z <= 100; z++) {
+                tree.addBlocker(20, y, z, 1.0f);
+            }
+        }
+        assertEquals(0.25, tree.factor(1, 3, 3, 40, 3, 3), 1.0e-6);
+    }
+
+    // Exact trees (merge tolerance 0) of mixed sections must give the same transmission as a plain voxel walk
+    @Test
+    public void transmissionMatchesVoxelWalk() {
+        Random random = new Random(1234);
+        float[] values = {1.0f, 0.995f, 0.99f, 0.985f, 0.5f, 0.0f};
+        int failures = 0;
+        for (int section = 0; section < 50; section++) {
+            float[] voxels = new float[16 * 16 * 16];
+            Arrays.fill(voxels, 1.0f);
+            QuadTree exact = new QuadTree(0, 0, 0, 16, 16, 16, 0.0f);
+            int blocks = random.nextInt(200);
+            for (int i = 0; i < blocks; i++) {
+                int x = random.nextInt(16);
+                int y = random.nextInt(16);
+                int z = random.nextInt(16);
+                // Mostly small absorptions, those would merge away with a non zero tolerance
+                float v = values[random.nextInt(random.nextInt(10) == 0 ? values.length : 4)];
+                voxels[x + z * 16 + y * 256] = v;
+                exact.addBlocker(x, y, z, v);
+            }
+            for (int ray = 0; ray < 200; ray++) {
+                double sx = random.nextDouble() * 16, sy = random.nextDouble() * 16, sz = random.nextDouble() * 16;
+                double ex = random.nextDouble() * 16, ey = random.nextDouble() * 16, ez = random.nextDouble() * 16;
+                double expected = walk(voxels, sx, sy, sz, ex, ey, ez);
+                double actual = exact.transmission(sx, sy, sz, ex - sx, ey - sy, ez - sz, 0.0, 1.0);
+                if (Math.abs(expected - actual) > 1.0e-5 * Math.max(expected, 1.0e-3)) {
+                    failures++;
+                }
+            }
+        }
+        assertEquals(0, failures, "transmission() vs voxel walk mismatches in 10000 rays");
+    }
+
+    // Product of the voxel values along the segment, including the voxels of both end points
+    private static double walk(float[] voxels, double sx, double sy, double sz, double ex, double ey, double ez) {
+        int x = (int) Math.floor(sx), y = (int) Math.floor(sy), z = (int) Math.floor(sz);
+        int endX = (int) Math.floor(ex), endY = (int) Math.floor(ey), endZ = (int) Math.floor(ez);
+        double dx = ex - sx, dy = ey - sy, dz = ez - sz;
+        int stepX = dx > 0 ? 1 : -1, stepY = dy > 0 ? 1 : -1, stepZ = dz > 0 ? 1 : -1;
+        double tDeltaX = dx == 0 ? Double.POSITIVE_INFINITY : Math.abs(1.0 / dx);
+        double tDeltaY = dy == 0 ? Double.POSITIVE_INFINITY : Math.abs(1.0 / dy);
+        double tDeltaZ = dz == 0 ? Double.POSITIVE_INFINITY : Math.abs(1.0 / dz);
+        double tMaxX = dx == 0 ? Double.POSITIVE_INFINITY : (stepX > 0 ? x + 1 - sx : sx - x) * tDeltaX;
+        double tMaxY = dy == 0 ? Double.POSITIVE_INFINITY : (stepY > 0 ? y + 1 - sy : sy - y) * tDeltaY;
+        double tMaxZ = dz == 0 ? Double.POSITIVE_INFINITY : (stepZ > 0 ? z + 1 - sz : sz - z) * tDeltaZ;
+        double factor = voxels[x + z * 16 + y * 256];
+        while (x != endX || y != endY || z != endZ) {
+            if (tMaxX <= tMaxY && tMaxX <= tMaxZ) {
+                x += stepX;
+                tMaxX += tDeltaX;
+            } else if (tMaxY <= tMaxZ) {
+                y += stepY;
+                tMaxY += tDeltaY;
+            } else {
+                z += stepZ;
+                tMaxZ += tDeltaZ;
+            }
+            factor *= voxels[x + z * 16 + y * 256];
+        }
+        return factor;
+    }
+}